@@ -1,14 +1,46 @@
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.io.PrintStream;
 import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.IntBuffer;
 import java.nio.channels.Channels;
 import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SelectableChannel;
 import java.nio.channels.SelectionKey;
 import java.nio.channels.Selector;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -35,8 +67,9 @@ import org.apache.log4j.PatternLayout;
  * <a href="http://oreilly.com/catalog/expect/chapter/ch03.html">
  * http://oreilly.com/catalog/expect/chapter/ch03.html</a> <br>
  * <br>
- * Expect uses a thread to convert InputStream to a SelectableChannel; other
- * than this, no multi-threading is used.<br>
+ * Expect uses a thread to convert InputStream to a SelectableChannel (not
+ * needed when it is created from a SelectableChannel); other than this, no
+ * multi-threading is used.<br>
  * A call to expect() will block for at most timeout seconds. Expect is not
  * designed to be thread-safe, in other words, do not call methods of the same
  * Expect object in different threads.
@@ -45,81 +78,251 @@ import org.apache.log4j.PatternLayout;
  * @version 1.1
  */
 public class Expect {
-	static final Logger log = Logger.getLogger(Expect.class);
 	/**Logging is turned off by default.*/
-	static {
-		log.setLevel(Level.OFF);
-	}
+	private static volatile Log defaultLog = Log.OFF;
+	private Log log = defaultLog;
 	
 	private OutputStream output;
-	private Pipe.SourceChannel inputChannel;
+	/** always a {@link SelectableChannel} in non-blocking mode */
+	private ReadableByteChannel inputChannel;
 	
+	/** opened on first use, see {@link #selector()} */
 	private Selector selector;
+	/** the thread piping an InputStream into inputChannel, if there is one */
+	private Pump pump;
+	/** set once a read from inputChannel returned EOF */
+	private volatile boolean eof = false;
 	
 	public Expect(InputStream input, OutputStream output) {
+		this(input, output, null);
+	}
+	
+	/**
+	 * Same as {@link #Expect(InputStream, OutputStream)}, but runs the piping
+	 * task on the given Executor instead of the shared default one (see
+	 * {@link #setDefaultPumpExecutor(Executor)}).
+	 */
+	public Expect(InputStream input, OutputStream output, Executor pumpExecutor) {
 		try {
-			this.inputChannel = inputStreamToSelectableChannel(input);
-			selector = Selector.open();
-			inputChannel.register(selector, SelectionKey.OP_READ);
+			this.inputChannel = inputStreamToSelectableChannel(input,
+					pumpExecutor);
 		} catch (IOException e) {
-			log.fatal("Fatal error when initializing pipe or selector", e);
+			log.fatal("Fatal error when initializing pipe", e);
 			//e.printStackTrace();
 		}
 		this.output = output;
 	}
 	
+	/**
+	 * Creates an Expect object reading from a channel. If the channel is a
+	 * {@link SelectableChannel} (a socket, the source of a {@link Pipe}...) it
+	 * is switched to non-blocking mode and selected on directly, without the
+	 * piping thread and the extra copy {@link #Expect(InputStream, OutputStream)}
+	 * needs. Other channels are piped like an InputStream.<br>
+	 * Note the channel is closed by {@link #close()}; and since it is made
+	 * non-blocking, output must not be a stream over the same channel (as
+	 * {@code Channels.newOutputStream(socketChannel)} would be): use
+	 * {@code socketChannel.socket().getOutputStream()} instead.
+	 */
+	public Expect(ReadableByteChannel input, OutputStream output) {
+		try {
+			if (input instanceof SelectableChannel) {
+				((SelectableChannel) input).configureBlocking(false);
+				this.inputChannel = input;
+			} else {
+				this.inputChannel = inputStreamToSelectableChannel(
+						Channels.newInputStream(input), null);
+			}
+		} catch (IOException e) {
+			log.fatal("Fatal error when initializing channel", e);
+		}
+		this.output = output;
+	}
+	
+	/**
+	 * @return the Selector the input channel is registered with, opening it
+	 *         on first use
+	 */
+	private Selector selector() throws IOException {
+		if (selector == null) {
+			selector = Selector.open();
+			((SelectableChannel) inputChannel).register(selector,
+					SelectionKey.OP_READ);
+		}
+		return selector;
+	}
+	
 	/**
 	 * Essentially, this method converts an {@link InputStream} to a
-	 * {@link SelectableChannel}. A thread is created to read from the
-	 * InputStream, and write to a pipe. The source of the pipe is returned as
-	 * an input handle from which you can perform unblocking read. The thread
-	 * will terminate when reading EOF from InputStream, or when InputStream is
-	 * closed, or when the returned Channel is closed(pipe broken).
+	 * {@link SelectableChannel}. A task is started on the executor to read
+	 * from the InputStream, and write to a pipe. The source of the pipe is
+	 * returned as an input handle from which you can perform unblocking read.
+	 * The task will terminate when reading EOF from InputStream, or when
+	 * InputStream is closed, or when the returned Channel is closed(pipe
+	 * broken), or when this Expect is closed.
 	 * 
 	 * @param input
+	 * @param executor
+	 *            where to run the piping task, null for the default one
 	 * @return a non-blocking Channel you can read from
 	 * @throws IOException
 	 *             most unlikely
 	 * 
 	 */
-	private static Pipe.SourceChannel inputStreamToSelectableChannel(
-			final InputStream input) throws IOException {
+	private Pipe.SourceChannel inputStreamToSelectableChannel(
+			final InputStream input, Executor executor) throws IOException {
 		Pipe pipe = Pipe.open();
 		pipe.source().configureBlocking(false);
-		final OutputStream out = Channels.newOutputStream(pipe.sink());
-		Thread piping = new Thread(new Runnable() {
-			@Override
-			public void run() {
-				//LOG
-				byte[] buffer = new byte[1024];
-				try {
-					for (int n = 0; n != -1; n = input.read(buffer)) {
-						out.write(buffer, 0, n);
-						if (duplicatedTo != null) {
-							String toWrite = new String(buffer, 0, n);
-							duplicatedTo.append(toWrite);	// no Exception will be thrown
-						}
+		pump = new Pump(input, Channels.newOutputStream(pipe.sink()), log);
+		(executor != null ? executor : getDefaultPumpExecutor()).execute(pump);
+		return pipe.source();
+	}
+	
+	/**
+	 * Copies an InputStream into the sink of a pipe until EOF, an
+	 * IOException, or {@link #stop()}.
+	 */
+	private static class Pump implements Runnable {
+		private final InputStream input;
+		private final OutputStream out;
+		private volatile boolean stopped = false;
+		/** set when the task has closed the sink, for whatever reason */
+		volatile boolean ended = false;
+		private Thread runner;
+		volatile Log log;
+		/** gets everything read, whether anyone expects it or not */
+		volatile Transcript transcript;
+		
+		Pump(InputStream input, OutputStream out, Log log) {
+			this.input = input;
+			this.out = out;
+			this.log = log;
+		}
+		
+		@Override
+		public void run() {
+			synchronized (this) {
+				runner = Thread.currentThread();
+			}
+			String name = Thread.currentThread().getName();
+			Thread.currentThread().setName(PUMP_THREAD_NAME);
+			//LOG
+			byte[] buffer = new byte[1024];
+			try {
+				while (!stopped) {
+					Object event = Events.CURRENT.beginPumpRead();
+					int n = input.read(buffer);		// the event lasts as long as this blocks
+					if (event != null)
+						Events.CURRENT.endPumpRead(event, n);
+					if (n == -1 || stopped)
+						break;
+					out.write(buffer, 0, n);
+					Transcript t = transcript;
+					if (t != null)
+						t.offer(Arrays.copyOf(buffer, n));
+					if (duplicatedTo != null) {
+						String toWrite = new String(buffer, 0, n);
+						duplicatedTo.append(toWrite);	// no Exception will be thrown
 					}
-					log.debug("EOF from InputStream");
-					input.close();		// now that input has EOF, close it.
-										// other than this, do not close input
-				} catch (IOException e) {
+				}
+				log.debug(stopped ? "Piping stopped" : "EOF from InputStream");
+				input.close();		// now that input has EOF, close it.
+									// other than this (and stop()), do not close input
+			} catch (IOException e) {
+				if (stopped)
+					log.debug("Piping stopped");
+				else
 					log.warn("IOException when piping from InputStream, "
 							+ "now the piping thread will end", e);
-					//e.printStackTrace();
-				} finally {
-					try {
-						log.debug("closing sink of the pipe");
-						out.close();
-					} catch (IOException e) {
-					}
+				//e.printStackTrace();
+			} finally {
+				try {
+					log.debug("closing sink of the pipe");
+					out.close();
+				} catch (IOException e) {
 				}
+				ended = true;
+				synchronized (this) {
+					runner = null;
+					Thread.interrupted();	// do not leave stop()'s interrupt to the executor
+				}
+				Thread.currentThread().setName(name);
+			}
+		}
+		
+		/**
+		 * Makes the task end as soon as possible: the thread is interrupted
+		 * and the InputStream closed, which unblocks a pending read for most
+		 * streams; otherwise the task ends when the read returns.
+		 */
+		void stop() {
+			stopped = true;
+			synchronized (this) {
+				if (runner != null)
+					runner.interrupt();
+			}
+			try {
+				input.close();
+			} catch (IOException e) {
+				log.debug("Exception when closing InputStream", e);
+			}
+		}
+	
+		/**
+		 * Makes the task end after the read in progress, without closing the
+		 * InputStream (which belongs to someone else).
+		 */
+		void abandon() {
+			stopped = true;
+		}
+	}
+	
+	static final String PUMP_THREAD_NAME =
+			"Piping InputStream to SelectableChannel Thread";
+	
+	private static Executor defaultPumpExecutor;
+	
+	/**
+	 * @return the Executor piping tasks run on when none is given to the
+	 *         constructor: virtual threads on Java 21 and later, otherwise a
+	 *         cached pool of daemon threads
+	 */
+	public static synchronized Executor getDefaultPumpExecutor() {
+		if (defaultPumpExecutor == null)
+			defaultPumpExecutor = newDefaultPumpExecutor();
+		return defaultPumpExecutor;
+	}
+	
+	/**
+	 * Sets the Executor shared by all Expect objects created afterwards
+	 * without one of their own. Each live Expect object created from an
+	 * InputStream occupies one task until it reaches EOF or is closed.
+	 */
+	public static synchronized void setDefaultPumpExecutor(Executor executor) {
+		defaultPumpExecutor = executor;
+	}
+	
+	private static Executor newDefaultPumpExecutor() {
+		try {
+			// Java 21: Executors.newVirtualThreadPerTaskExecutor()
+			return (Executor) Executors.class.getMethod(
+					"newVirtualThreadPerTaskExecutor").invoke(null);
+		} catch (Exception e) {
+			defaultLog.debug("No virtual threads, piping on a thread pool");
+		}
+		return newDaemonThreadPool(PUMP_THREAD_NAME);
+	}
+	
+	/** @return a cached pool of daemon threads named threadName */
+	static Executor newDaemonThreadPool(final String threadName) {
+		return Executors.newCachedThreadPool(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread t = new Thread(r, threadName);
+				t.setDaemon(true);
+				return t;
 			}
 		});
-		piping.setName("Piping InputStream to SelectableChannel Thread");
-		piping.setDaemon(true);
-		piping.start();
-		return pipe.source();
 	}
 	
 	private Process process = null;
@@ -142,14 +345,52 @@ public class Expect {
 	 *         spawned process
 	 */
 	public static Expect spawn(String command) {
-		ProcessBuilder pb = new ProcessBuilder(command.split(" "));
+		return spawn(new ProcessBuilder(command.split(" ")), command);
+	}
+	
+	/**
+	 * Same as {@link #spawnPty(String, int, int)} with a 24x80 terminal.
+	 */
+	public static Expect spawnPty(String command) {
+		return spawnPty(command, 24, 80);
+	}
+	
+	/**
+	 * Creates an Expect object by spawning a command on a pseudo-terminal
+	 * (Linux only). Programs writing to a pipe, as with
+	 * {@link #spawn(String)}, usually buffer their output in blocks of a few
+	 * KB, so a prompt may not arrive until much later; on a terminal they
+	 * flush every line (or every prompt), as they do for a user.<br>
+	 * Java cannot open a pty by itself, so the command runs under script(1)
+	 * from util-linux, which gives it a pty as its controlling terminal and
+	 * copies between the pty and the pipes of the process. The command is
+	 * interpreted by /bin/sh. Note the terminal echoes what is sent and
+	 * turns "\n" into "\r\n" in the output, like for a user.
+	 * 
+	 * @param rows
+	 *            window size of the terminal, as reported by stty size
+	 * @return Expect object talking to the terminal, or null if script
+	 *         could not be started
+	 */
+	public static Expect spawnPty(String command, int rows, int columns) {
+		ProcessBuilder pb = new ProcessBuilder("script", "-qfec",
+				"stty rows " + rows + " cols " + columns + " 2>/dev/null; "
+						+ command, "/dev/null");
+		Map<String, String> env = pb.environment();
+		env.put("SHELL", "/bin/sh");		// what script runs the command with
+		if (!env.containsKey("TERM"))
+			env.put("TERM", "dumb");
+		return spawn(pb, command);
+	}
+	
+	private static Expect spawn(ProcessBuilder pb, String command) {
 		pb.redirectErrorStream(true);
 		Process p;
 		try {
 			p = pb.start();
 		} catch (IOException e) {
 			//e.printStackTrace();
-			log.error("Error when spawning command: " + command, e);
+			defaultLog.error("Error when spawning command: " + command, e);
 			return null;
 		}
 		Expect retv = new Expect(p.getInputStream(), p.getOutputStream());
@@ -162,7 +403,7 @@ public class Expect {
 	 * Convenience method to send a string to output handle
 	 */
 	public void send(String str) {
-		this.send(str.getBytes());
+		this.send(charset != null ? str.getBytes(charset) : str.getBytes());
 	}
 
 	/**
@@ -170,21 +411,183 @@ public class Expect {
 	 * Write a byte array to the output handle, notice flush()
 	 */
 	public void send(byte[] toWrite) {
+		if (pending.size() > 0) {	// keep the order of what was queued
+			sendNoFlush(toWrite);
+			flush();
+			return;
+		}
 		//System.out.println("sending: " + bytesToPrintableString(toWrite));
-		log.info("sending: " + bytesToPrintableString(toWrite));
+		if (log.isEnabled(LogLevel.INFO))
+			log.info("sending: " + bytesToPrintableString(toWrite));
+		Object event = Events.CURRENT.beginSend();
 		try {
 			output.write(toWrite);
+			long flushStart = event != null ? System.nanoTime() : 0;
 			output.flush();
+			if (event != null)
+				Events.CURRENT.endSend(event, toWrite.length, flushStart);
+			recordSent(toWrite, 0, toWrite.length);
 		} catch (IOException e) {
 			log.error("Error when sending bytes to output", e);
 			//e.printStackTrace();
 		}
 	}
+	
+	/** bytes queued by sendNoFlush() */
+	private final ByteArrayOutputStream pending = new ByteArrayOutputStream();
+	
+	/**
+	 * Queues bytes to be sent by the next {@link #flush()} (or send(), or
+	 * close()). Nothing is written to the output handle until then, so
+	 * remember to flush before expecting the reply.
+	 */
+	public void sendNoFlush(byte[] toWrite) {
+		if (log.isEnabled(LogLevel.INFO))
+			log.info("queueing: " + bytesToPrintableString(toWrite));
+		pending.write(toWrite, 0, toWrite.length);
+	}
+	
+	/** Convenience method to queue a string, see {@link #sendNoFlush(byte[])} */
+	public void sendNoFlush(String str) {
+		sendNoFlush(charset != null ? str.getBytes(charset) : str.getBytes());
+	}
+	
+	/**
+	 * Sends the byte arrays (after anything queued) with one write and one
+	 * flush of the output handle.
+	 */
+	public void sendAll(List<byte[]> toWrite) {
+		for (byte[] bytes : toWrite)
+			sendNoFlush(bytes);
+		flush();
+	}
+	
+	/**
+	 * Writes what {@link #sendNoFlush(byte[])} queued to the output handle in
+	 * one write, and flushes it.
+	 */
+	public void flush() {
+		Object event = Events.CURRENT.beginSend();
+		try {
+			int n = pending.size();
+			if (n > 0) {
+				if (log.isEnabled(LogLevel.DEBUG))
+					log.debug("flushing " + n + " bytes");
+				pending.writeTo(output);
+				if (recorder != null) {
+					byte[] sent = pending.toByteArray();
+					recordSent(sent, 0, sent.length);
+				}
+				pending.reset();
+			}
+			long flushStart = event != null ? System.nanoTime() : 0;
+			output.flush();
+			if (event != null)
+				Events.CURRENT.endSend(event, n, flushStart);
+		} catch (IOException e) {
+			pending.reset();
+			log.error("Error when sending bytes to output", e);
+		}
+	}
+	
+	/**
+	 * @return a new {@link Pipeline} sending to and expecting on this object
+	 */
+	public Pipeline pipeline() {
+		return new Pipeline();
+	}
+	
+	/**
+	 * Sends several commands at once and then expects their replies in
+	 * order, instead of waiting for each reply before sending the next
+	 * command. Only for peers that queue their input while busy, as shells
+	 * do:
+	 * 
+	 * <pre>
+	 * {@code
+	 * List<Expect.MatchResult> results = expect.pipeline()
+	 * 		.add("cd /tmp\n", "$ ").add("ls\n", "$ ").run(10);
+	 * }
+	 * </pre>
+	 */
+	public final class Pipeline {
+		private final List<byte[]> commands = new ArrayList<byte[]>();
+		private final List<PatternSet> replies = new ArrayList<PatternSet>();
+		
+		private Pipeline() {
+		}
+		
+		/**
+		 * Queues a command, and the patterns that end its reply (see
+		 * {@link Expect#expect(int, Object...)})
+		 */
+		public Pipeline add(String command, Object... patterns) {
+			return add(command, PatternSet.cached(patterns));
+		}
+		public Pipeline add(String command, PatternSet reply) {
+			return add(charset != null ? command.getBytes(charset)
+					: command.getBytes(), reply);
+		}
+		public Pipeline add(byte[] command, PatternSet reply) {
+			commands.add(command);
+			replies.add(reply);
+			return this;
+		}
+		
+		/** @return number of commands queued */
+		public int size() {
+			return commands.size();
+		}
+		
+		/**
+		 * Sends all queued commands in one write, then expects the reply of
+		 * each in turn, waiting for at most timeout seconds for each. The
+		 * queue is empty afterwards.
+		 * 
+		 * @return one result per reply; ends early with the first one that
+		 *         failed (timeout, EOF...)
+		 */
+		public List<MatchResult> run(int timeout) {
+			List<PatternSet> expected = new ArrayList<PatternSet>(replies);
+			sendAll(commands);
+			commands.clear();
+			replies.clear();
+			List<MatchResult> results = new ArrayList<MatchResult>();
+			for (PatternSet reply : expected) {
+				MatchResult r = new MatchResult(Expect.this,
+						expect(timeout, reply));
+				results.add(r);
+				if (!r.isSuccess())
+					break;
+			}
+			return results;
+		}
+	}
 
 	private int default_timeout = 60;
 	private boolean restart_timeout_upon_receive = false;
-	private StringBuffer buffer = new StringBuffer();
+	private CharRing buffer = new CharRing();
+	/** bytes read but not decoded yet, e.g. half of a UTF-8 sequence */
+	private ByteBuffer readBytes = ByteBuffer.allocate(1024);
+	private CharBuffer readChars = CharBuffer.allocate(1024);
+	private Charset charset = null;
+	/** input for expectBytes(), bytes [0, position) not consumed yet */
+	private ByteBuffer byteWindow = ByteBuffer.allocate(1024);
+	/** absolute offset of the first byte in byteWindow */
+	private long byteWindowBase = 0;
+	private long bytesDiscarded = 0;
+	/** limit of byteWindow, see setMatch_max_bytes() */
+	private int match_max_bytes = 0;
+	private CharsetDecoder decoder = newDecoder(null);
 	private boolean notransfer = false;
+	private boolean incremental_match = true;
+	private int max_match_length = 0;
+	private boolean combined_match = false;
+	/**chars handed to the matchers so far: to the literal and DFA scanners,
+	 * to find() as its region; for the Expect event and tests*/
+	long scanned_chars = 0;
+	/**the wheel for this session's timeouts, the shared one if null*/
+	TimerWheel timerWheel = null;
 	
 	/**String before the last match(if there was a match),
 	 *  updated after each expect() call*/
@@ -192,9 +595,19 @@ public class Expect {
 	/**String representing the last match(if there was a match),
 	 *  updated after each expect() call*/
 	public String match;
+	/**Bytes before the last match of {@link #expectBytes(int, BytePattern...)}
+	 * (if there was a match), updated after each expect() call*/
+	public byte[] beforeBytes;
+	/**Bytes of the last match of {@link #expectBytes(int, BytePattern...)}
+	 * (if there was a match), updated after each expect() call*/
+	public byte[] matchBytes;
 	/**Whether the last match was successful,
 	 *  updated after each expect() call*/
 	public boolean isSuccess = false;
+	/** the Matchers of the PatternSet last expected, reset for each use */
+	private PatternSet matchersFor;
+	Matcher[] matchers;
+	private RegexAutomaton.Dfa dfa;
 	
 	public static final int RETV_TIMEOUT = -1, RETV_EOF = -2,
 			RETV_IOEXCEPTION = -9;
@@ -211,39 +624,28 @@ public class Expect {
 	}
 
 	/**
-	 * Convenience method, internally it constructs a List{@literal <Pattern>}
-	 * using the object array, and call {@link #expect(int, List) } using the
-	 * List. The {@link String}s in the object array will be treated as
-	 * literals; meanwhile {@link Pattern}s will be directly added to the List.
-	 * If the array contains other objects, they will be converted by
-	 * {@link #toString()} and then used as literal strings.
+	 * Convenience method, internally it looks up (or builds) a
+	 * {@link PatternSet} for the object array, and calls
+	 * {@link #expect(int, PatternSet)} with it. The {@link String}s in the
+	 * object array will be treated as literals; meanwhile {@link Pattern}s
+	 * will be used as regular expressions. If the array contains other
+	 * objects, they will be converted by {@link #toString()} and then used as
+	 * literal strings.<br>
+	 * Compiled sets are kept in a small LRU cache keyed on the arguments, see
+	 * {@link PatternSet#cached(Object...)}.
 	 * 
 	 * @param patterns
 	 * @return
 	 */
 	public int expect(int timeout, Object... patterns) {
-		ArrayList<Pattern> list = new ArrayList<Pattern>();
-		for (Object o : patterns) {
-			if (o instanceof String)
-				list.add(Pattern.compile(Pattern.quote((String) o))); // requires 1.5 and up
-			else if (o instanceof Pattern)
-				list.add((Pattern) o);
-			else{
-				log.warn("Object " + o.toString() + " (class: "
-						+ o.getClass().getName() + ") is neither a String nor "
-						+ "a java.util.regex.Pattern, using as a literal String");
-				list.add(Pattern.compile(Pattern.quote(o.toString())));
-			}
-		}
-		return expect(timeout, list);
+		return expect(timeout, PatternSet.cached(patterns));
 	}
 	
 	/**
-	 * Expect will wait for the input handle to produce one of the patterns in
-	 * the list. If a match is found, this method returns immediately;
-	 * otherwise, the methods waits for up to timeout seconds, then returns. If
-	 * timeout is less than or equal to 0 Expect will check one time to see if
-	 * the internal buffer contains the pattern.
+	 * Same as {@link #expect(int, PatternSet)}. The List is compiled into a
+	 * PatternSet, unless it holds the same Patterns, in the same order, as
+	 * the set this object expected last; then that set (and its Matchers)
+	 * is used again.
 	 * 
 	 * @param timeout
 	 *            timeout in seconds
@@ -255,62 +657,101 @@ public class Expect {
 	 *         timeout
 	 */
 	public int expect(int timeout, List<Pattern> list) {
-		log.debug("Expecting " + list);
+		PatternSet last = matchersFor;
+		if (last == null || !last.patterns.equals(list))
+			last = PatternSet.of(list);	// Patterns are equal by identity
+		return expect(timeout, last);
+	}
+	
+	/**
+	 * Convenience method, same as calling {@link #expect(int, PatternSet)
+	 * expect(default_timeout, patterns)}
+	 */
+	public int expect(PatternSet patterns) {
+		return expect(default_timeout, patterns);
+	}
+	
+	/**
+	 * Expect will wait for the input handle to produce one of the patterns in
+	 * the set. If a match is found, this method returns immediately;
+	 * otherwise, the methods waits for up to timeout seconds, then returns. If
+	 * timeout is less than or equal to 0 Expect will check one time to see if
+	 * the internal buffer contains the pattern.<br>
+	 * Patterns that are quoted literals (as built from the Strings given to
+	 * {@link PatternSet#of(Object...)}) are all searched for in a single pass
+	 * over the input; if several patterns match, the one with the lowest
+	 * position in the set wins, regardless of where it occurs.
+	 * 
+	 * @param timeout
+	 *            timeout in seconds
+	 * @param patterns
+	 *            compiled patterns used for match the internal buffer
+	 *            obtained by reading the InputStream
+	 * @return position of the matched pattern within the set (starting from
+	 *         0); or a negative number if there is an IOException, EOF or
+	 *         timeout
+	 */
+	public int expect(int timeout, PatternSet patterns) {
+		return expect(TimeUnit.SECONDS.toNanos(timeout), patterns);
+	}
+	
+	/**
+	 * Same as {@link #expect(int, PatternSet)}, with a timeout of millisecond
+	 * (or finer) precision.
+	 */
+	public int expect(Duration timeout, PatternSet patterns) {
+		return expect(timeout.toNanos(), patterns);
+	}
+	
+	private int expect(long timeoutNanos, PatternSet patterns) {
+		Object event = Events.CURRENT.beginExpect();
+		ExpectTiming timing = event != null ? new ExpectTiming() : null;
+		int retv = expect(timeoutNanos, patterns, timing);
+		if (event != null)
+			Events.CURRENT.endExpect(event, patterns, timeoutNanos, retv, timing);
+		return retv;
+	}
+	
+	/** @param timing gets the time split and bytes read, null if not recorded */
+	private int expect(long timeoutNanos, PatternSet patterns, ExpectTiming timing) {
+		if (log.isEnabled(LogLevel.DEBUG))
+			log.debug("Expecting " + patterns);
 		
 		clearGlobalVariables();
-		long endTime = System.currentTimeMillis() + (long)timeout * 1000;
+		Deadline deadline = new Deadline(timeoutNanos, timerWheel());
 		
+		Scan scan = new Scan(patterns);
+		long t = timing != null ? System.nanoTime() : 0;
+		long scanned = scanned_chars;
 		try {
-			ByteBuffer bytes = ByteBuffer.allocate(1024);
-			int n;
 			while (true) {
-				for (int i = 0; i < list.size(); i++) {
-					log.trace("trying to match " + list.get(i)
-							+ " against buffer \"" + buffer + "\"");
-					Matcher m = list.get(i).matcher(buffer);
-					if (m.find()) {
-						log.trace("success!");
-						int matchStart = m.start(), matchEnd = m.end();
-						this.before = buffer.substring(0, matchStart);
-						this.match = m.group();
-						this.isSuccess = true;
-						if(!notransfer)buffer.delete(0, matchEnd);
-						return i;
-					}
-				}
-
-				long waitTime = endTime - System.currentTimeMillis();
-				if (restart_timeout_upon_receive)
-					waitTime = timeout * 1000;
-				if (waitTime <= 0) {
-					log.debug("Timeout when expecting " + list);
+				if (deadline.armed())
+					scan.budget(deadline.end);
+				int i = scan.match();
+				if (timing != null)
+					t = timing.matched(t);
+				if (i >= 0)
+					return i;
+				if (scan.overBudget)
 					return RETV_TIMEOUT;
-				}
-				//System.out.println("waiting for "+waitTime);
 
-				selector.select(waitTime);
-				//System.out.println(selector.selectedKeys().size());
-				if (selector.selectedKeys().size() == 0) {
-					//System.err.println("timeout!");
-					//break;	//we can directly "break" here
-					log.debug("Timeout when expecting " + list);
+				if (!waitForInput(deadline)) {
+					if (log.isEnabled(LogLevel.DEBUG))
+						log.debug("Timeout when expecting " + patterns);
 					return RETV_TIMEOUT;
 				}
-				selector.selectedKeys().clear();
-				if ((n = inputChannel.read(bytes)) == -1) {
+				int n = readInput();
+				if (timing != null)
+					t = timing.waited(t, n);
+				if (n == -1) {
 					//System.err.println("EOF!");
 					//break;
-					log.debug("EOF when expecting " + list);
+					if (log.isEnabled(LogLevel.DEBUG))
+						log.debug("EOF when expecting " + patterns);
 					return RETV_EOF;
 				}
-				StringBuilder tmp = new StringBuilder();
-				for (int i = 0; i < n; i++) {
-					buffer.append((char) bytes.get(i));
-					tmp.append(byteToPrintableString(bytes.get(i)));
-				}
-				log.debug("Obtained following from InputStream: " + tmp);
-				bytes.clear();
-				
+				if (restart_timeout_upon_receive)
+					deadline.restart();
 				//System.out.println(buffer);
 			}
 		} catch (IOException e) {
@@ -318,202 +759,3591 @@ public class Expect {
 			log.error("IOException when selecting or reading", e);
 			thrownIOE = e;
 			return RETV_IOEXCEPTION;
+		} finally {
+			deadline.cancel();
+			if (timing != null)
+				timing.charsScanned = scanned_chars - scanned;
 		}
 		
 	}
-
+	
 	/**
-	 * Convenience method, internally it calls {@link #expect(int, List)
-	 * expect(timeout, new ArrayList&lt;Pattern&gt;())}. Given an empty list,
-	 * {@link #expect(int, List)} will not perform any regex matching, therefore
-	 * the only conditions for it to return is EOF or timeout (or IOException).
-	 * If EOF is detected, {@link #isSuccess} and {@link #before} are properly
-	 * set.
-	 * 
-	 * @param timeout
-	 * @return same as return value of {@link #expect(int, List)}
+	 * Convenience method, same as {@link #expectLine(int, PatternSet)} with
+	 * the PatternSet looked up (or built) for the object array, see
+	 * {@link #expect(int, Object...)}.
 	 */
-	public int expectEOF(int timeout) {
-		int retv = expect(timeout, new ArrayList<Pattern>());
-		if (retv == RETV_EOF) {
-			this.isSuccess = true;
-			this.before = this.buffer.toString();
-			this.buffer.delete(0, buffer.length());
-		}
-		return retv;
+	public int expectLine(int timeout, Object... patterns) {
+		return expectLine(timeout, PatternSet.cached(patterns));
 	}
-	/**Convenience method, same as calling {@link #expectEOF(int)
-	 * expectEOF(default_timeout)}*/
-	public int expectEOF() {
-		return expectEOF(default_timeout);
+	
+	/**
+	 * Waits for a line that one of the patterns is found in, for output that
+	 * comes as many lines, e.g. a build log. Each complete line (and the
+	 * unterminated last one at EOF) is tried once, without its "\n" or
+	 * "\r\n", with ^ and $ matching at its ends; the newlines in the buffer
+	 * are indexed as they arrive, so each read only costs as much as the
+	 * lines it completed, however big the buffer is.<br>
+	 * On success {@link #before} holds the lines before the matching one,
+	 * {@link #match} the matching line without its line terminator, and the
+	 * buffer is consumed up to and including that terminator.
+	 * 
+	 * @return position of the matched pattern within the set, or a negative
+	 *         number like {@link #expect(int, PatternSet)}
+	 */
+	public int expectLine(int timeout, PatternSet patterns) {
+		return expectLine(TimeUnit.SECONDS.toNanos(timeout), patterns);
 	}
 	
 	/**
-	 * Throws checked exceptions when expectEOF was not successful.
+	 * Same as {@link #expectLine(int, PatternSet)}, with a timeout of
+	 * millisecond (or finer) precision.
 	 */
-	public int expectEOFOrThrow(int timeout) throws TimeoutException,
-			IOException {
-		int retv = expectEOF(timeout);
-		if (retv == RETV_TIMEOUT)
-			throw new TimeoutException();
-		if (retv == RETV_IOEXCEPTION)
-			throw thrownIOE;
+	public int expectLine(Duration timeout, PatternSet patterns) {
+		return expectLine(timeout.toNanos(), patterns);
+	}
+	
+	private int expectLine(long timeoutNanos, PatternSet patterns) {
+		Object event = Events.CURRENT.beginExpect();
+		ExpectTiming timing = event != null ? new ExpectTiming() : null;
+		int retv = expectLine(timeoutNanos, patterns, timing);
+		if (event != null)
+			Events.CURRENT.endExpect(event, patterns, timeoutNanos, retv, timing);
 		return retv;
 	}
-	/**Convenience method, same as calling {@link #expectEOF(int)
-	 * expectEOF(default_timeout)}*/
-	public int expectEOFOrThrow() throws TimeoutException, IOException {
-		return expectEOFOrThrow(default_timeout);
+	
+	private int expectLine(long timeoutNanos, PatternSet patterns,
+			ExpectTiming timing) {
+		if (log.isEnabled(LogLevel.DEBUG))
+			log.debug("Expecting a line with " + patterns);
+		
+		clearGlobalVariables();
+		Deadline deadline = new Deadline(timeoutNanos, timerWheel());
+		long next = buffer.base();		// start of the first line not tried
+		long t = timing != null ? System.nanoTime() : 0;
+		long scanned = scanned_chars;
+		try {
+			while (true) {
+				int n = buffer.indexLines();
+				if (deadline.armed())
+					chars.budget(deadline.end);
+				for (int k = buffer.newlineIndexFrom(next); k < n; k++) {
+					long newline = buffer.newline(k);
+					int i = matchLine(patterns, Math.max(next, buffer.base()),
+							newline, newline + 1);
+					if (i >= 0)
+						return i;
+					next = newline + 1;
+				}
+				if (timing != null)
+					t = timing.matched(t);
+				
+				if (!waitForInput(deadline)) {
+					if (log.isEnabled(LogLevel.DEBUG))
+						log.debug("Timeout when expecting a line with " + patterns);
+					return RETV_TIMEOUT;
+				}
+				int read = readInput();
+				if (timing != null)
+					t = timing.waited(t, read);
+				if (read == -1) {
+					long end = buffer.base() + buffer.length();
+					next = Math.max(next, buffer.base());
+					if (next < end) {
+						int i = matchLine(patterns, next, end, end);
+						if (i >= 0)
+							return i;
+					}
+					if (log.isEnabled(LogLevel.DEBUG))
+						log.debug("EOF when expecting a line with " + patterns);
+					return RETV_EOF;
+				}
+				if (restart_timeout_upon_receive)
+					deadline.restart();
+			}
+		} catch (OverBudget e) {
+			return RETV_TIMEOUT;
+		} catch (IOException e) {
+			log.error("IOException when selecting or reading", e);
+			thrownIOE = e;
+			return RETV_IOEXCEPTION;
+		} finally {
+			chars.unlimited();
+			deadline.cancel();
+			if (timing != null)
+				timing.charsScanned = scanned_chars - scanned;
+		}
 	}
-
-	/**useful when calling {@link #expectOrThrow(int, Object...)}*/
-	private IOException thrownIOE;
 	
 	/**
-	 * This method calls {@link #expect(int, Object...) expect(timeout,
-	 * patterns)}, and throws checked exceptions when expect was not successful.
-	 * Useful when you want to simplify error handling: for example, when you
-	 * send a series of commands to an SSH server, you expect a prompt after
-	 * each send, however the server may die or the prompt may take forever to
-	 * appear, you would want to skip the following commands if those occurred.
-	 * In such a case this method will be handy.
+	 * Tries the patterns against the line [start, end) of the buffer
+	 * (absolute offsets), a trailing '\r' left out; on success consumes
+	 * the buffer up to consumeTo.
 	 * 
-	 * @param timeout
-	 * @param patterns
-	 * @throws TimeoutException
-	 *             when expect times out
-	 * @throws EOFException
-	 *             when EOF is encountered
-	 * @throws IOException
-	 *             when there is a problem reading from the InputStream
-	 * @return same as {@link #expect(int, Object...) expect(timeout, patterns)}
+	 * @return index of the matched pattern, or -1
 	 */
-	public int expectOrThrow(int timeout, Object... patterns)
-			throws TimeoutException, EOFException, IOException {
-		int retv = expect(timeout, patterns);
-		switch (retv) {
-		case RETV_TIMEOUT:
-			throw new TimeoutException();
-		case RETV_EOF:
-			throw new EOFException();
-		case RETV_IOEXCEPTION:
-			throw thrownIOE;
-		default:
-			return retv;
+	private int matchLine(PatternSet patterns, long start, long end,
+			long consumeTo) {
+		int from = (int) (start - buffer.base());
+		int to = (int) (end - buffer.base());
+		if (to > from && buffer.charAt(to - 1) == '\r')
+			to--;
+		if (matchersFor != patterns) {
+			matchers = new Matcher[patterns.size()];
+			dfa = null;
+			matchersFor = patterns;
 		}
-	}
+		for (int i = 0; i < patterns.size(); i++) {
+			Matcher m = matchers[i];
+			if (m == null)
+				m = matchers[i] = patterns.patterns.get(i).matcher(chars);
+			else
+				m.reset();
+			m.useTransparentBounds(false);
+			m.useAnchoringBounds(true);
+			m.region(from, to);
+			scanned_chars += to - from;
+			boolean found;
+			try {
+				found = m.find();
+			} catch (OverBudget e) {
+				overBudget(patterns.patterns.get(i));
+				throw e;
+			}
+			if (found) {
+				if (log.isEnabled(LogLevel.TRACE))
+					log.trace("line \"" + buffer.substring(from, to)
+							+ "\" matches " + patterns.patterns.get(i));
+				succeed(from, to, (int) (consumeTo - buffer.base()));
+				return i;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * The state of one expect() call on this session: which patterns are
+	 * tried, and how far into the buffer each of them has been tried.
+	 */
+	final class Scan {
+		final PatternSet patterns;
+		private final AhoCorasick.Scanner literalScan;
+		/* scanFrom[i]: absolute offset (see CharRing.base()) from which
+		 * pattern i may still match, every start position before it has been
+		 * tried already */
+		private final long[] scanFrom;
+		private final Matcher[] matchers;
+		/* with combined_match: which regexes have matched, or null */
+		private final RegexAutomaton.Dfa.Scanner dfaScan;
+		private boolean budgeted = false;
+		private long budgetEnd;
+		/** whether the last match() gave up on a regex at the budget */
+		boolean overBudget = false;
+		
+		Scan(PatternSet patterns) {
+			this.patterns = patterns;
+			literalScan = patterns.literalScanner();
+			scanFrom = new long[patterns.size()];
+			if (matchersFor != patterns) {
+				Expect.this.matchers = new Matcher[patterns.size()];
+				dfa = null;
+				matchersFor = patterns;
+			}
+			matchers = Expect.this.matchers;
+			RegexAutomaton automaton = combined_match ? patterns.automaton() : null;
+			if (automaton != null && dfa == null)
+				dfa = automaton.new Dfa();
+			dfaScan = automaton == null ? null : dfa.new Scanner();
+		}
+		
+		/**
+		 * Makes match() give up on a regex still running when
+		 * System.nanoTime() passes endNanos, see {@link BudgetedChars}.
+		 */
+		void budget(long endNanos) {
+			budgeted = true;
+			budgetEnd = endNanos;
+		}
+		
+		/**
+		 * Tries the patterns against what has arrived so far; on success
+		 * sets {@link #before} and {@link #match} and consumes the buffer.
+		 * 
+		 * @return index of the matched pattern, or -1 (then see overBudget)
+		 */
+		int match() {
+			if (budgeted)
+				chars.budget(budgetEnd);
+			try {
+				return matchPatterns();
+			} finally {
+				chars.unlimited();
+			}
+		}
+		
+		private int matchPatterns() {
+			List<Pattern> list = patterns.patterns;
+			String[] literals = patterns.literals;
+			if (literalScan != null)
+				scanned_chars += literalScan.scan(buffer);
+			if (dfaScan != null)
+				scanned_chars += dfaScan.scan(buffer);
+			for (int i = 0; i < list.size(); i++) {
+				if (log.isEnabled(LogLevel.TRACE))
+					log.trace("trying to match " + list.get(i)
+							+ " against buffer \"" + buffer + "\"");
+				if (literals[i] != null) {
+					long end = literalScan.firstEnd(i);
+					if (end < 0)
+						continue;
+					log.trace("success!");
+					int matchEnd = (int) (end - buffer.base());
+					succeed(matchEnd - literals[i].length(), matchEnd);
+					return i;
+				}
+				if (dfaScan != null && dfaScan.ruledOut(i))
+					continue;	// else find() gets the bounds of the match
+				int from = (int) Math.max(0, scanFrom[i] - buffer.base());
+				String req = patterns.required[i];
+				if (req != null && literalScan.lastEnd(list.size() + i)
+						- req.length() < buffer.base() + from)
+					continue;	// no match can start at from or later yet
+				Matcher m = matchers[i];
+				if (m == null)
+					m = matchers[i] = list.get(i).matcher(chars);
+				else
+					m.reset();		// sees what was appended since
+				m.useTransparentBounds(true);
+				m.useAnchoringBounds(false);
+				if (incremental_match)
+					m.region(from, buffer.length());
+				scanned_chars += m.regionEnd() - m.regionStart();
+				try {
+					if (m.find()) {
+						log.trace("success!");
+						succeed(m.start(), m.end());
+						return i;
+					}
+					if (incremental_match)
+						scanFrom[i] = buffer.base() + nextScanStart(list.get(i),
+								m, from, buffer.length());
+				} catch (OverBudget e) {
+					overBudget(list.get(i));
+					overBudget = true;
+					return -1;
+				}
+			}
+			overBudget = false;
+			return -1;
+		}
+	}
+	
+	/**
+	 * The buffer as the regex Matchers see it. Once given a budget, it
+	 * looks at the clock every CHECK_EVERY chars read and throws
+	 * {@link OverBudget} when the end has passed, so a Pattern that
+	 * backtracks for ages (say "(a+)+b" against many a's) cannot hold an
+	 * expect call much past its timeout.
+	 */
+	static final class BudgetedChars implements CharSequence {
+		private static final int CHECK_EVERY = 4096;
+		private final CharRing chars;
+		private boolean limited = false;
+		private long end;
+		private int countdown = CHECK_EVERY;
+		
+		BudgetedChars(CharRing chars) {
+			this.chars = chars;
+		}
+		
+		void budget(long endNanos) {
+			limited = true;
+			end = endNanos;
+		}
+		
+		void unlimited() {
+			limited = false;
+		}
+		
+		@Override
+		public char charAt(int index) {
+			if (--countdown == 0) {
+				countdown = CHECK_EVERY;
+				if (limited && System.nanoTime() - end >= 0)
+					throw new OverBudget();
+			}
+			return chars.charAt(index);
+		}
+		
+		@Override
+		public int length() {
+			return chars.length();
+		}
+		
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return chars.subSequence(start, end);
+		}
+		
+		@Override
+		public String toString() {
+			return chars.toString();
+		}
+	}
+	
+	/** thrown out of a regex match by {@link BudgetedChars} */
+	@SuppressWarnings("serial")
+	static final class OverBudget extends RuntimeException {
+		OverBudget() {
+			super(null, null, false, false);	// no stack trace, it is caught
+		}
+	}
+	
+	private final BudgetedChars chars = new BudgetedChars(buffer);
+	private final AtomicLong overBudgetCount = new AtomicLong();
+	
+	private void overBudget(Pattern p) {
+		overBudgetCount.incrementAndGet();
+		log.warn("Gave up matching " + p + " against " + buffer.length()
+				+ " chars, it ran past the timeout (catastrophic backtracking?)");
+	}
+	
+	/**
+	 * @return how many times a regex Pattern was still running when the
+	 *         timeout passed, so that expect() gave up on it and returned
+	 *         {@link #RETV_TIMEOUT} (or the async call failed with a
+	 *         {@link TimeoutException})
+	 */
+	public long getOverBudgetCount() {
+		return overBudgetCount.get();
+	}
+	
+	/**
+	 * Reads what is available from the input channel without blocking, and
+	 * appends it (decoded) to the buffer.
+	 * 
+	 * @return number of bytes read, or -1 on EOF
+	 */
+	int readInput() throws IOException {
+		int start = readBytes.position();
+		int n = inputChannel.read(readBytes);
+		if (n == -1) {
+			eof = true;
+			decode(true);
+			return -1;
+		}
+		if (log.isEnabled(LogLevel.DEBUG)) {
+			StringBuilder tmp = new StringBuilder();
+			for (int i = start; i < start + n; i++)
+				tmp.append(byteToPrintableString(readBytes.get(i)));
+			log.debug("Obtained following from InputStream: " + tmp);
+		}
+		record(readBytes, start, n);
+		decode(false);
+		return n;
+	}
+	
+	/**
+	 * hands bytes just read to the transcript and the recorder, if there
+	 * are any; with a piping task, the transcript got them from the task
+	 */
+	private void record(ByteBuffer from, int start, int n) {
+		Transcript t = pump == null ? transcript : null;
+		ExpectRecorder r = recorder;
+		if ((t == null && r == null) || n <= 0)
+			return;
+		ByteBuffer src = from.duplicate();
+		src.limit(start + n).position(start);
+		if (r != null) {
+			try {
+				r.received(src.duplicate());
+			} catch (IOException e) {
+				log.warn("Exception when recording input", e);
+			}
+		}
+		if (t != null) {
+			byte[] chunk = new byte[n];
+			src.get(chunk);
+			t.offer(chunk);
+		}
+	}
+	
+	/** hands bytes just sent to the recorder, if there is one */
+	private void recordSent(byte[] b, int off, int len) {
+		ExpectRecorder r = recorder;
+		if (r == null)
+			return;
+		try {
+			r.sent(b, off, len);
+		} catch (IOException e) {
+			log.warn("Exception when recording output", e);
+		}
+	}
+	
+	private volatile ExpectRecorder recorder;
+	
+	/**
+	 * Records everything this object reads and sends to an
+	 * {@link ExpectRecorder}. The recorder is not closed by {@link #close()}.
+	 * 
+	 * @param recorder null to stop recording
+	 */
+	public void setRecorder(ExpectRecorder recorder) {
+		this.recorder = recorder;
+	}
+	public ExpectRecorder getRecorder() {
+		return recorder;
+	}
+	
+	/**
+	 * @return the non-blocking channel the input is read from, for
+	 *         registering it with a Selector of one's own
+	 */
+	SelectableChannel getInputChannel() {
+		return (SelectableChannel) inputChannel;
+	}
+	
+	/**
+	 * @return true if the input is known to have ended without reading it:
+	 *         a read came to EOF, the InputStream piped into the input
+	 *         ended, or this object was closed
+	 */
+	boolean isInputEnded() {
+		Pump p = pump;
+		return eof || !inputChannel.isOpen() || (p != null && p.ended);
+	}
+	
+	/**
+	 * Blocks until the input channel is readable.
+	 * 
+	 * @return false if the deadline passed first
+	 */
+	private boolean waitForInput(Deadline deadline) throws IOException {
+		Selector selector = selector();
+		if (!deadline.await(selector))
+			return false;
+		selector.selectedKeys().clear();
+		return true;
+	}
+	
+	private TimerWheel timerWheel() {
+		return timerWheel != null ? timerWheel : TimerWheel.get();
+	}
+	
+	/**
+	 * The timeout of one blocking expect call (also of an
+	 * {@link ExpectGroup}), armed on a {@link TimerWheel}, the shared one
+	 * unless given: when it fires, the selector the call is waiting on is
+	 * woken up. That is the only thing that ends the wait.
+	 */
+	static final class Deadline implements Runnable {
+		private final long timeoutNanos;
+		private final TimerWheel wheel;
+		volatile long end;
+		volatile boolean expired = false;
+		volatile Selector selector;
+		private TimerWheel.Timeout timer;
+		
+		Deadline(long timeoutNanos) {
+			this(timeoutNanos, TimerWheel.get());
+		}
+		
+		Deadline(long timeoutNanos, TimerWheel wheel) {
+			this.timeoutNanos = timeoutNanos;
+			this.wheel = wheel;
+			if (timeoutNanos <= 0)
+				expired = true;		// check the buffer once, do not wait
+			else
+				arm();
+		}
+		
+		private void arm() {
+			end = System.nanoTime() + timeoutNanos;
+			timer = wheel.arm(timeoutNanos, this);
+		}
+		
+		/** starts counting the timeout again, as input has been received */
+		void restart() {
+			if (timer == null)
+				return;
+			timer.cancel();
+			expired = false;
+			arm();
+		}
+		
+		void cancel() {
+			if (timer != null)
+				timer.cancel();
+		}
+		
+		/** @return false for a timeout of 0, which checks the buffer once */
+		boolean armed() {
+			return timer != null;
+		}
+		
+		/**
+		 * Blocks until a channel registered with the selector is ready, or
+		 * the timer wakes the selector up.
+		 * 
+		 * @return false if the deadline passed first, else the ready keys
+		 *         are in selector.selectedKeys()
+		 */
+		boolean await(Selector selector) throws IOException {
+			this.selector = selector;	// before expired is read, see run()
+			while (!expired) {
+				selector.select();
+				if (selector.selectedKeys().size() != 0)
+					return true;
+			}
+			return false;
+		}
+		
+		@Override
+		public void run() {
+			if (System.nanoTime() - end < 0)
+				return;		// fired for the timeout before restart()
+			expired = true;
+			Selector s = selector;
+			if (s != null)
+				s.wakeup();
+		}
+	}
+	
+	/**
+	 * Decodes what is in readBytes and appends it to the buffer, in one bulk
+	 * copy per CharBuffer full. An incomplete multi-byte sequence at the end
+	 * stays in readBytes until the rest of it is read, or until EOF.
+	 */
+	private void decode(boolean endOfInput) {
+		readBytes.flip();
+		while (decoder.decode(readBytes, readChars, endOfInput).isOverflow())
+			appendDecoded();
+		if (endOfInput) {
+			while (decoder.flush(readChars).isOverflow())
+				appendDecoded();
+			decoder.reset();
+		}
+		appendDecoded();
+		readBytes.compact();
+	}
+	
+	private void appendDecoded() {
+		buffer.append(readChars.array(), 0, readChars.position());
+		readChars.clear();
+	}
+	
+	private static CharsetDecoder newDecoder(Charset charset) {
+		return (charset != null ? charset : ISO_8859_1).newDecoder()
+				.onMalformedInput(CodingErrorAction.REPLACE)
+				.onUnmappableCharacter(CodingErrorAction.REPLACE);
+	}
+	
+	private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+	
+	private void succeed(int matchStart, int matchEnd) {
+		succeed(matchStart, matchEnd, matchEnd);
+	}
+	
+	private void succeed(int matchStart, int matchEnd, int consumeTo) {
+		before = buffer.substring(0, matchStart);
+		match = buffer.substring(matchStart, matchEnd);
+		this.isSuccess = true;
+		if(!notransfer)buffer.consume(consumeTo);
+	}
+
+	/**
+	 * After a failed find() over buffer[from, end), works out where the next
+	 * attempt has to start so that its result is the same as scanning the
+	 * whole buffer again: the first position whose match attempt looked at
+	 * the end of the input, as no other one can match however much data
+	 * arrives. If max_match_length is known, only the last
+	 * (max_match_length - 1) positions need to be retried.<br>
+	 * m.hitEnd() after the failed find() cannot tell: find() ends with an
+	 * attempt at the end itself, so it is always true. Each position is
+	 * asked instead, with lookingAt().
+	 */
+	private int nextScanStart(Pattern p, Matcher m, int from, int end) {
+		if (p.pattern().contains("\\G"))
+			return from;		// \G is relative to the region start
+		if (max_match_length > 0)
+			return Math.max(from, end - max_match_length + 1);
+		for (int i = from; i < end; i++) {
+			m.region(i, end);
+			if (m.lookingAt() || m.hitEnd())
+				return i;
+		}
+		return end;
+	}
+
+	/**
+	 * @return the String a {@link Pattern} built by
+	 *         {@code Pattern.compile(Pattern.quote(s))} matches, or null if p
+	 *         is not such a literal pattern
+	 */
+	static String literalOf(Pattern p) {
+		String s = p.pattern();
+		if (p.flags() != 0 || !s.startsWith("\\Q") || !s.endsWith("\\E"))
+			return null;
+		StringBuilder sb = new StringBuilder();
+		int i = 2;
+		while (true) {
+			int e = s.indexOf("\\E", i);
+			sb.append(s, i, e);
+			i = e + 2;
+			if (i == s.length())
+				return sb.toString();
+			// Pattern.quote() writes a literal "\E" as "\E\\E\Q"
+			if (!s.startsWith("\\\\E\\Q", i))
+				return null;
+			sb.append("\\E");
+			i += 5;
+		}
+	}
+
+	/**
+	 * Finds a String that every match of p contains, by a conservative look
+	 * at its source: the longest run of plain characters outside any group
+	 * or character class, where a character made optional by ?, * or {0,}
+	 * ends the run without being part of it.<br>
+	 * The String only decides whether p is worth running at all (see
+	 * {@link PatternSet#required}), not where in the buffer it runs.
+	 * 
+	 * @return the literal, or null if none was found, p has an alternation
+	 *         at top level, or flags that change what a character matches
+	 */
+	static String requiredLiteralOf(Pattern p) {
+		String s = p.pattern();
+		int flags = p.flags();
+		if (flags == Pattern.LITERAL)
+			return s.isEmpty() ? null : s;
+		if ((flags & ~(Pattern.MULTILINE | Pattern.DOTALL | Pattern.UNIX_LINES)) != 0)
+			return null;
+		String best = "";
+		StringBuilder run = new StringBuilder();
+		int depth = 0;
+		int i = 0;
+		while (i < s.length()) {
+			char c = s.charAt(i);
+			int lastLength = run.length();	// before the char at i, if any
+			boolean plain = false;
+			if (c == '\\') {
+				if (i + 1 == s.length())
+					return null;
+				char e = s.charAt(i + 1);
+				if (e == 'Q') {
+					int end = s.indexOf("\\E", i + 2);
+					if (end < 0)
+						end = s.length();
+					if (depth == 0) {
+						run.append(s, i + 2, end);
+						// a quantifier after \E only applies to the last char
+						lastLength = Math.max(run.length() - 1, lastLength);
+						plain = end > i + 2;
+					}
+					i = Math.min(end + 2, s.length());
+				} else {
+					plain = depth == 0 && !Character.isLetterOrDigit(e);
+					if (plain)
+						run.append(e);
+					i = escapeEnd(s, i);
+				}
+			} else if (c == '[') {
+				i = classEnd(s, i);
+				if (i < 0)
+					return null;
+			} else if (c == '(') {
+				if (s.startsWith("(?", i) && i + 2 < s.length()
+						&& ":=!<>".indexOf(s.charAt(i + 2)) < 0)
+					return null;	// inline flags
+				depth++;
+				i++;
+			} else if (c == ')') {
+				depth--;
+				i++;
+			} else if (c == '|') {
+				if (depth == 0)
+					return null;
+				i++;
+			} else if (c == '{') {
+				i = s.indexOf('}', i) + 1;	// a quantifier after a group
+				if (i == 0)
+					return null;
+			} else {
+				plain = depth == 0 && ".^$?*+".indexOf(c) < 0;
+				if (plain)
+					run.append(c);
+				i++;
+			}
+			if (depth == 0 && !plain) {
+				// also cuts the run at the quantifier after a group or class
+				if (run.length() > best.length())
+					best = run.toString();
+				run.setLength(0);
+			}
+			// a quantifier after a plain char
+			if (plain && i < s.length() && "?*+{".indexOf(s.charAt(i)) >= 0) {
+				if (isZeroRepeat(s, i)) {
+					run.setLength(lastLength);
+					if (lastLength > 0
+							&& Character.isHighSurrogate(run.charAt(lastLength - 1)))
+						run.setLength(lastLength - 1);
+				}
+				if (run.length() > best.length())
+					best = run.toString();
+				run.setLength(0);
+				if (s.charAt(i) == '{') {
+					i = s.indexOf('}', i) + 1;
+					if (i == 0)
+						return null;
+				} else {
+					i++;
+				}
+				if (i < s.length() && (s.charAt(i) == '?' || s.charAt(i) == '+'))
+					i++;	// lazy or possessive
+			}
+		}
+		if (run.length() > best.length())
+			best = run.toString();
+		return best.isEmpty() ? null : best;
+	}
+	
+	/** @return whether the quantifier at s[i] allows zero repetitions */
+	private static boolean isZeroRepeat(String s, int i) {
+		char q = s.charAt(i);
+		if (q == '?' || q == '*')
+			return true;
+		if (q == '+')
+			return false;
+		int j = i + 1;
+		while (j < s.length() && s.charAt(j) == '0')
+			j++;
+		return j > i + 1 && j < s.length()
+				&& (s.charAt(j) == ',' || s.charAt(j) == '}');
+	}
+	
+	/**
+	 * @return the index after the escape sequence starting at s[start],
+	 *         including its argument, if any: enough of it to stay in step
+	 *         with the pattern, erring on the side of skipping more
+	 */
+	private static int escapeEnd(String s, int start) {
+		int i = start + 2;
+		char e = s.charAt(start + 1);
+		int max = 0;
+		String digits = "0123456789abcdefABCDEF";
+		switch (e) {
+		case 'x':
+		case 'p':
+		case 'P':
+		case 'N':
+			if (i < s.length() && s.charAt(i) == '{') {
+				int end = s.indexOf('}', i);
+				return end < 0 ? s.length() : end + 1;
+			}
+			if (e != 'x')
+				return Math.min(i + 1, s.length());
+			max = 2;
+			break;
+		case 'u':
+			max = 4;
+			break;
+		case '0':
+			max = 3;
+			digits = "01234567";
+			break;
+		case 'c':
+			return Math.min(i + 1, s.length());
+		case 'k':
+			int end = s.indexOf('>', i);
+			return end < 0 ? s.length() : end + 1;
+		default:
+			if (e < '1' || e > '9')
+				return i;
+			max = s.length();		// a back reference
+			digits = "0123456789";
+		}
+		int n = 0;
+		while (i < s.length() && n++ < max && digits.indexOf(s.charAt(i)) >= 0)
+			i++;
+		return i;
+	}
+	
+	/**
+	 * @return the index after the character class starting at s[start], or
+	 *         -1 if it is not closed
+	 */
+	private static int classEnd(String s, int start) {
+		int depth = 0;
+		for (int i = start; i < s.length(); i++) {
+			char c = s.charAt(i);
+			if (c == '\\') {
+				if (s.startsWith("\\Q", i)) {
+					int end = s.indexOf("\\E", i + 2);
+					if (end < 0)
+						return -1;
+					i = end + 1;
+				} else {
+					i++;
+				}
+			} else if (c == '[') {
+				depth++;
+				if (i + 1 < s.length() && s.charAt(i + 1) == '^')
+					i++;
+				if (i + 1 < s.length() && s.charAt(i + 1) == ']')
+					i++;	// a leading ] is a member
+			} else if (c == ']' && --depth == 0) {
+				return i + 1;
+			}
+		}
+		return -1;
+	}
+	
+	/**
+	 * Convenience method, internally it calls {@link #expect(int, PatternSet)
+	 * expect(timeout, PatternSet.EMPTY)}. Given an empty set,
+	 * {@link #expect(int, PatternSet)} will not perform any regex matching, therefore
+	 * the only conditions for it to return is EOF or timeout (or IOException).
+	 * If EOF is detected, {@link #isSuccess} and {@link #before} are properly
+	 * set.
+	 * 
+	 * @param timeout
+	 * @return same as return value of {@link #expect(int, PatternSet)}
+	 */
+	public int expectEOF(int timeout) {
+		int retv = expect(timeout, PatternSet.EMPTY);
+		if (retv == RETV_EOF)
+			succeedEOF();
+		return retv;
+	}
+	
+	private void succeedEOF() {
+		this.isSuccess = true;
+		before = this.buffer.toString();
+		this.buffer.consume(buffer.length());
+	}
+	/**Convenience method, same as calling {@link #expectEOF(int)
+	 * expectEOF(default_timeout)}*/
+	public int expectEOF() {
+		return expectEOF(default_timeout);
+	}
+	
+	/**
+	 * Throws checked exceptions when expectEOF was not successful.
+	 */
+	public int expectEOFOrThrow(int timeout) throws TimeoutException,
+			IOException {
+		int retv = expectEOF(timeout);
+		if (retv == RETV_TIMEOUT)
+			throw new TimeoutException();
+		if (retv == RETV_IOEXCEPTION)
+			throw thrownIOE;
+		return retv;
+	}
+	/**Convenience method, same as calling {@link #expectEOF(int)
+	 * expectEOF(default_timeout)}*/
+	public int expectEOFOrThrow() throws TimeoutException, IOException {
+		return expectEOFOrThrow(default_timeout);
+	}
+	
+	/**
+	 * Convenience method, same as calling
+	 * {@link #expectAsync(Duration, PatternSet) expectAsync(timeout,
+	 * PatternSet.cached(patterns))}
+	 */
+	public CompletableFuture<MatchResult> expectAsync(Duration timeout,
+			Object... patterns) {
+		return expectAsync(timeout, PatternSet.cached(patterns));
+	}
+	
+	/**
+	 * Non-blocking version of {@link #expectOrThrow(int, PatternSet)}: the
+	 * input is read and matched by a single event loop thread shared by all
+	 * Expect objects, and the returned future completes with the result
+	 * once one of the patterns appears. It completes exceptionally with a
+	 * {@link TimeoutException} when the timeout passes first, an
+	 * {@link EOFException} on EOF, or the IOException from reading.<br>
+	 * {@link #before}, {@link #match} and {@link #isSuccess} are set as well,
+	 * but only read them after the future has completed: until then, do not
+	 * call any other method of this object. Dependent stages added without
+	 * an executor run on the event loop thread, so keep them short (or use
+	 * the ...Async variants).
+	 * 
+	 * @return a future for the session and position of the matched pattern
+	 */
+	public CompletableFuture<MatchResult> expectAsync(Duration timeout,
+			PatternSet patterns) {
+		if (log.isEnabled(LogLevel.DEBUG))
+			log.debug("Expecting asynchronously " + patterns);
+		return startAsync(new AsyncExpect(patterns, timeout));
+	}
+	
+	/**
+	 * Non-blocking version of {@link #expectEOFOrThrow(int)}, see
+	 * {@link #expectAsync(Duration, PatternSet)}. The future completes with a
+	 * result whose index is {@link #RETV_EOF} and whose before holds the rest
+	 * of the input.
+	 */
+	public CompletableFuture<MatchResult> expectEOFAsync(Duration timeout) {
+		log.debug("Expecting EOF asynchronously");
+		return startAsync(new AsyncExpect(null, timeout));
+	}
+	
+	private CompletableFuture<MatchResult> startAsync(AsyncExpect op) {
+		AsyncExpect pending = pendingAsync;
+		if (pending != null && !pending.isDone()) {
+			op.future.completeExceptionally(new IllegalStateException(
+					"another asynchronous expect is still pending"));
+			return op.future;
+		}
+		pendingAsync = op;
+		try {
+			EventLoop.get().submit(op);
+		} catch (IOException e) {
+			pendingAsync = null;
+			op.future.completeExceptionally(e);
+		}
+		return op.future;
+	}
+	
+	/** the asynchronous expect running on the event loop, if any */
+	private volatile AsyncExpect pendingAsync;
+	
+	/**
+	 * One asynchronous expect (or expectEOF, if patterns is null) on this
+	 * session. All methods run on the event loop thread.
+	 */
+	final class AsyncExpect {
+		final PatternSet patterns;
+		/** built in start(): a Scan takes over this session's Matchers */
+		private Scan scan;
+		final long timeoutNanos;
+		/** System.nanoTime() to fail at */
+		private long deadline;
+		private TimerWheel.Timeout timer;
+		final CompletableFuture<MatchResult> future =
+				new CompletableFuture<MatchResult>();
+		private SelectionKey key;
+		private boolean finished = false;
+		
+		AsyncExpect(PatternSet patterns, Duration timeout) {
+			this.patterns = patterns;
+			this.timeoutNanos = timeout.toNanos();
+		}
+		
+		void start(EventLoop loop) {
+			clearGlobalVariables();
+			if (patterns != null)
+				scan = new Scan(patterns);
+			arm(loop);
+			try {
+				key = getInputChannel().keyFor(loop.selector);
+				if (key == null)
+					key = getInputChannel().register(loop.selector,
+							SelectionKey.OP_READ, this);
+				key.attach(this);
+				key.interestOps(SelectionKey.OP_READ);
+			} catch (IOException e) {
+				fail(e);
+				return;
+			}
+			tryMatch();
+		}
+		
+		private void arm(final EventLoop loop) {
+			deadline = System.nanoTime() + timeoutNanos;
+			timer = timerWheel().arm(timeoutNanos, new Runnable() {
+				@Override
+				public void run() {
+					loop.expired(AsyncExpect.this);
+				}
+			});
+		}
+		
+		void readable(EventLoop loop) {
+			if (future.isDone()) {		// cancelled by the caller
+				finish();
+				return;
+			}
+			try {
+				if (readInput() == -1) {
+					log.debug("EOF when expecting asynchronously");
+					if (patterns != null) {
+						fail(new EOFException());
+					} else {
+						succeedEOF();
+						finish();
+						future.complete(new MatchResult(Expect.this, RETV_EOF));
+					}
+					return;
+				}
+			} catch (IOException e) {
+				log.error("IOException when reading", e);
+				thrownIOE = e;
+				fail(e);
+				return;
+			}
+			if (restart_timeout_upon_receive && !future.isDone()) {
+				timer.cancel();
+				arm(loop);
+			}
+			tryMatch();
+		}
+		
+		private boolean tryMatch() {
+			if (scan == null)
+				return false;
+			if (timeoutNanos > 0)
+				scan.budget(deadline);
+			int i = scan.match();
+			if (scan.overBudget)
+				fail(new TimeoutException());
+			if (i < 0)
+				return false;
+			finish();
+			future.complete(new MatchResult(Expect.this, i));
+			return true;
+		}
+		
+		void expire() {
+			if (future.isDone()) {		// cancelled by the caller
+				finish();
+				return;
+			}
+			if (System.nanoTime() - deadline < 0)
+				return;		// fired for the timeout before a restart
+			log.debug("Timeout when expecting asynchronously");
+			fail(new TimeoutException());
+		}
+		
+		boolean isDone() {
+			return future.isDone();
+		}
+		
+		private void fail(Throwable t) {
+			finish();
+			future.completeExceptionally(t);
+		}
+		
+		/** stops selecting for this session before the future completes */
+		void finish() {
+			if (finished)
+				return;
+			finished = true;
+			if (timer != null)
+				timer.cancel();
+			if (key != null && key.isValid() && key.attachment() == this) {
+				key.interestOps(0);
+				key.attach(null);
+			}
+			if (pendingAsync == this)
+				pendingAsync = null;
+		}
+	}
+
+	/**useful when calling {@link #expectOrThrow(int, Object...)}*/
+	IOException thrownIOE;
+	
+	/**
+	 * This method calls {@link #expect(int, Object...) expect(timeout,
+	 * patterns)}, and throws checked exceptions when expect was not successful.
+	 * Useful when you want to simplify error handling: for example, when you
+	 * send a series of commands to an SSH server, you expect a prompt after
+	 * each send, however the server may die or the prompt may take forever to
+	 * appear, you would want to skip the following commands if those occurred.
+	 * In such a case this method will be handy.
+	 * 
+	 * @param timeout
+	 * @param patterns
+	 * @throws TimeoutException
+	 *             when expect times out
+	 * @throws EOFException
+	 *             when EOF is encountered
+	 * @throws IOException
+	 *             when there is a problem reading from the InputStream
+	 * @return same as {@link #expect(int, Object...) expect(timeout, patterns)}
+	 */
+	public int expectOrThrow(int timeout, Object... patterns)
+			throws TimeoutException, EOFException, IOException {
+		return expectOrThrow(timeout, PatternSet.cached(patterns));
+	}
+	/**
+	 * Same as {@link #expectOrThrow(int, Object...)}, using a precompiled
+	 * {@link PatternSet}.
+	 */
+	public int expectOrThrow(int timeout, PatternSet patterns)
+			throws TimeoutException, EOFException, IOException {
+		int retv = expect(timeout, patterns);
+		switch (retv) {
+		case RETV_TIMEOUT:
+			throw new TimeoutException();
+		case RETV_EOF:
+			throw new EOFException();
+		case RETV_IOEXCEPTION:
+			throw thrownIOE;
+		default:
+			return retv;
+		}
+	}
 	/**Convenience method, same as calling {@link #expectOrThrow(int, Object...)
 	 * expectOrThrow(default_timeout, patterns)}*/
 	public int expectOrThrow(Object... patterns) throws TimeoutException,
 			EOFException, IOException {
 		return expectOrThrow(default_timeout, patterns);
 	}
+	/**Convenience method, same as calling {@link #expectOrThrow(int, PatternSet)
+	 * expectOrThrow(default_timeout, patterns)}*/
+	public int expectOrThrow(PatternSet patterns) throws TimeoutException,
+			EOFException, IOException {
+		return expectOrThrow(default_timeout, patterns);
+	}
+	
+	/**
+	 * Convenience method, same as calling
+	 * {@link #expectBytes(int, BytePattern...) expectBytes(timeout, patterns)}
+	 * with each byte array as an exact needle.
+	 */
+	public int expectBytes(int timeout, byte[]... needles) {
+		BytePattern[] patterns = new BytePattern[needles.length];
+		for (int i = 0; i < needles.length; i++)
+			patterns[i] = BytePattern.of(needles[i]);
+		return expectBytes(timeout, patterns);
+	}
+	
+	/**
+	 * Binary counterpart of {@link #expect(int, PatternSet)}: waits for one
+	 * of the byte patterns to appear in the input, matching the raw bytes
+	 * without decoding them. On success {@link #beforeBytes} and
+	 * {@link #matchBytes} are set, {@link #before} and {@link #match} are
+	 * not. Timeout, EOF and the lowest-index-wins rule work as in expect().<br>
+	 * The bytes are kept in a window of their own: data read by expect()
+	 * is not seen here and vice versa, so do not mix the two on one
+	 * session. Its size is limited by {@link #setMatch_max_bytes(int)}, not
+	 * by match_max.
+	 * 
+	 * @param timeout
+	 *            timeout in seconds
+	 * @return position of the matched pattern (starting from 0); or a
+	 *         negative number if there is an IOException, EOF or timeout
+	 */
+	public int expectBytes(int timeout, BytePattern... patterns) {
+		if (log.isEnabled(LogLevel.DEBUG))
+			log.debug("Expecting bytes " + Arrays.toString(patterns));
+		
+		clearGlobalVariables();
+		Deadline deadline = new Deadline(TimeUnit.SECONDS.toNanos(timeout),
+				timerWheel());
+		
+		/* absolute offsets, see byteWindowBase */
+		long[] scanFrom = new long[patterns.length];
+		try {
+			while (true) {
+				int end = byteWindow.position();
+				for (int i = 0; i < patterns.length; i++) {
+					int from = (int) Math.max(0, scanFrom[i] - byteWindowBase);
+					int at = patterns[i].indexIn(byteWindow.array(), from, end);
+					if (at >= 0) {
+						log.trace("success!");
+						succeedBytes(at, at + patterns[i].length());
+						return i;
+					}
+					scanFrom[i] = byteWindowBase
+							+ Math.max(from, end - patterns[i].length() + 1);
+				}
+				
+				if (!waitForInput(deadline)) {
+					log.debug("Timeout when expecting bytes");
+					return RETV_TIMEOUT;
+				}
+				if (!byteWindow.hasRemaining()) {
+					ByteBuffer bigger = ByteBuffer.allocate(byteWindow.capacity() * 2);
+					byteWindow.flip();
+					byteWindow = bigger.put(byteWindow);
+				}
+				int start = byteWindow.position();
+				int n = inputChannel.read(byteWindow);
+				if (n == -1) {
+					eof = true;
+					log.debug("EOF when expecting bytes");
+					return RETV_EOF;
+				}
+				record(byteWindow, start, n);
+				if (log.isEnabled(LogLevel.DEBUG)) {
+					StringBuilder tmp = new StringBuilder();
+					for (int i = start; i < start + n; i++)
+						tmp.append(byteToPrintableString(byteWindow.get(i)));
+					log.debug("Obtained following from InputStream: " + tmp);
+				}
+				int max = match_max_bytes;
+				if (max > 0 && byteWindow.position() > max) {
+					bytesDiscarded += byteWindow.position() - max;
+					consumeBytes(byteWindow.position() - max);
+				}
+				if (restart_timeout_upon_receive)
+					deadline.restart();
+			}
+		} catch (IOException e) {
+			log.error("IOException when selecting or reading", e);
+			thrownIOE = e;
+			return RETV_IOEXCEPTION;
+		} finally {
+			deadline.cancel();
+		}
+	}
+	
+	private void succeedBytes(int matchStart, int matchEnd) {
+		this.beforeBytes = Arrays.copyOfRange(byteWindow.array(), 0, matchStart);
+		this.matchBytes = Arrays.copyOfRange(byteWindow.array(), matchStart,
+				matchEnd);
+		this.isSuccess = true;
+		if(!notransfer)consumeBytes(matchEnd);
+	}
+	
+	/** removes the first n bytes from the byte window */
+	private void consumeBytes(int n) {
+		byteWindow.flip();
+		byteWindow.position(n);
+		byteWindow.compact();
+		byteWindowBase += n;
+	}
+	
+	void clearGlobalVariables() {
+		isSuccess = false;
+		match = null;
+		before = null;
+		matchBytes = null;
+		beforeBytes = null;
+	}
+	
+	/**
+	 * Same as {@link #interact(ReadableByteChannel, WritableByteChannel, BytePattern...)},
+	 * for streams such as System.in and System.out. userIn is read by a task
+	 * on {@link #getDefaultPumpExecutor()}, which stays until this object is
+	 * closed so that nothing typed between two interact() calls is lost;
+	 * userIn itself is never closed.
+	 */
+	public int interact(InputStream userIn, OutputStream userOut,
+			BytePattern... escapes) {
+		try {
+			if (interaction == null || interaction.source != userIn)
+				pumpUserInput(userIn, userIn);
+		} catch (IOException e) {
+			log.error("IOException when piping user input", e);
+			thrownIOE = e;
+			return RETV_IOEXCEPTION;
+		}
+		return interact(interaction, Channels.newChannel(userOut), escapes);
+	}
+	
+	/**
+	 * Starts a pump task reading userIn into a pipe that interact() can
+	 * select on, keyed on source (what the caller passed as userIn) so
+	 * that the next interact() with it reuses the task.
+	 */
+	private void pumpUserInput(Object source, InputStream userIn)
+			throws IOException {
+		endInteraction();
+		Pipe pipe = Pipe.open();
+		pipe.source().configureBlocking(false);
+		Pump userPump = new Pump(userIn, Channels.newOutputStream(pipe.sink()), log);
+		interaction = new Interaction(source, pipe.source(), userPump);
+		getDefaultPumpExecutor().execute(userPump);
+	}
+	
+	/**
+	 * Gives the session to the user, like interact in Tcl Expect: what the
+	 * session sends is copied to userOut, and what the user sends is copied
+	 * to the session, until the user sends one of the escape sequences (it is
+	 * not passed on) or either side comes to EOF. Bytes are moved as they
+	 * are, through one ByteBuffer per direction: nothing is decoded or
+	 * added to the buffer of this object, and only what the user sends is
+	 * searched for escapes. A SelectableChannel is selected on directly,
+	 * other channels are read by a pump task.<br>
+	 * What was already read into the buffer of this object is given to the
+	 * user first; bytes the user sent after an escape are kept for the next
+	 * interact() with the same userIn.
+	 *
+	 * @return index of the escape sequence sent by the user, or
+	 *         {@link #RETV_EOF} (either side) or {@link #RETV_IOEXCEPTION}
+	 */
+	public int interact(ReadableByteChannel userIn, WritableByteChannel userOut,
+			BytePattern... escapes) {
+		try {
+			if (interaction == null || interaction.source != userIn) {
+				if (userIn instanceof SelectableChannel) {
+					endInteraction();
+					((SelectableChannel) userIn).configureBlocking(false);
+					interaction = new Interaction(userIn,
+							(SelectableChannel) userIn, null);
+				} else {
+					pumpUserInput(userIn, Channels.newInputStream(userIn));
+				}
+			}
+		} catch (IOException e) {
+			log.error("IOException when setting up user input", e);
+			thrownIOE = e;
+			return RETV_IOEXCEPTION;
+		}
+		return interact(interaction, userOut, escapes);
+	}
+	
+	/** the user side of the last interact(), kept for the next one */
+	private static final class Interaction {
+		final Object source;
+		final SelectableChannel channel;
+		final Pump pump;
+		/** what the user sent that is not passed on yet */
+		final ByteBuffer pending = ByteBuffer.allocate(8192);
+	
+		Interaction(Object source, SelectableChannel channel, Pump pump) {
+			this.source = source;
+			this.channel = channel;
+			this.pump = pump;
+		}
+	}
+	
+	private Interaction interaction;
+	
+	private void endInteraction() {
+		if (interaction == null)
+			return;
+		if (interaction.pump != null) {
+			interaction.pump.abandon();
+			try {
+				interaction.channel.close();	// the pump's next write fails
+			} catch (IOException e) {
+				log.debug("Exception when closing user input pipe", e);
+			}
+		}
+		interaction = null;
+	}
+	
+	private int interact(Interaction user, WritableByteChannel userOut,
+			BytePattern[] escapes) {
+		log.debug("Interacting");
+		clearGlobalVariables();
+		flush();
+		SelectionKey userKey = null;
+		Selector selector = null;
+		try {
+			giveBufferedTo(userOut);
+			int i = passUserInput(user.pending, escapes);
+			if (i >= 0)
+				return i;
+			selector = selector();
+			SelectionKey sessionKey = getInputChannel().keyFor(selector);
+			userKey = user.channel.register(selector, SelectionKey.OP_READ);
+			ByteBuffer fromSession = ByteBuffer.allocateDirect(8192);
+			while (true) {
+				selector.select();
+				Set<SelectionKey> ready = selector.selectedKeys();
+				if (ready.contains(sessionKey)) {
+					int n;
+					while ((n = inputChannel.read(fromSession)) > 0) {
+						fromSession.flip();
+						record(fromSession, 0, n);
+						while (fromSession.hasRemaining())
+							userOut.write(fromSession);
+						fromSession.clear();
+					}
+					if (n == -1) {
+						eof = true;
+						log.debug("EOF from session when interacting");
+						return RETV_EOF;
+					}
+				}
+				if (ready.contains(userKey)) {
+					ReadableByteChannel in = (ReadableByteChannel) user.channel;
+					int n;
+					while ((n = in.read(user.pending)) > 0) {
+						i = passUserInput(user.pending, escapes);
+						if (i >= 0)
+							return i;
+						if (!user.pending.hasRemaining())
+							throw new IOException("escape sequence too long");
+					}
+					if (n == -1) {
+						log.debug("EOF from user when interacting");
+						passHeldBack(user.pending);
+						return RETV_EOF;
+					}
+				}
+				ready.clear();
+			}
+		} catch (IOException e) {
+			log.error("IOException when interacting", e);
+			thrownIOE = e;
+			return RETV_IOEXCEPTION;
+		} finally {
+			if (userKey != null) {
+				userKey.cancel();
+				try {
+					selector.selectNow();	// deregisters the user channel
+				} catch (IOException e) {
+				}
+				selector.selectedKeys().clear();
+			}
+		}
+	}
+	
+	/**
+	 * Writes what has been read from the session but not consumed yet to
+	 * the user, and empties the buffers.
+	 */
+	private void giveBufferedTo(WritableByteChannel userOut) throws IOException {
+		byteWindow.flip();
+		while (byteWindow.hasRemaining())
+			userOut.write(byteWindow);
+		byteWindowBase += byteWindow.limit();
+		byteWindow.clear();
+		if (buffer.length() > 0) {
+			ByteBuffer chars = (charset != null ? charset : ISO_8859_1)
+					.encode(CharBuffer.wrap(buffer));
+			while (chars.hasRemaining())
+				userOut.write(chars);
+			buffer.consume(buffer.length());
+		}
+		readBytes.flip();		// the start of a character not decoded yet
+		while (readBytes.hasRemaining())
+			userOut.write(readBytes);
+		readBytes.clear();
+		decoder.reset();
+	}
+	
+	/**
+	 * Passes the user's bytes in pending on to the session, up to the first
+	 * escape sequence, which is dropped; bytes after it stay in pending. So
+	 * do the last bytes if they are the start of an escape sequence.
+	 *
+	 * @return index of the escape sequence found, or -1
+	 */
+	private int passUserInput(ByteBuffer pending, BytePattern[] escapes)
+			throws IOException {
+		byte[] data = pending.array();
+		int end = pending.position();
+		int found = -1, at = end;
+		for (int i = 0; i < escapes.length; i++) {
+			int j = escapes[i].indexIn(data, 0, end);
+			if (j >= 0 && (found < 0 || j < at)) {
+				found = i;
+				at = j;
+			}
+		}
+		if (found >= 0) {
+			if (log.isEnabled(LogLevel.DEBUG))
+				log.debug("Escape " + found + " from user when interacting");
+			sendUserBytes(data, at);
+			pending.flip();
+			pending.position(at + escapes[found].length());
+			pending.compact();
+			return found;
+		}
+		int held = 0;
+		for (BytePattern escape : escapes)
+			held = Math.max(held, escape.prefixAtEnd(data, end));
+		sendUserBytes(data, end - held);
+		pending.flip();
+		pending.position(end - held);
+		pending.compact();
+		return -1;
+	}
+	
+	/** passes on what was held back as a possible start of an escape */
+	private void passHeldBack(ByteBuffer pending) throws IOException {
+		sendUserBytes(pending.array(), pending.position());
+		pending.clear();
+	}
+	
+	private void sendUserBytes(byte[] data, int n) throws IOException {
+		if (n == 0)
+			return;
+		output.write(data, 0, n);
+		output.flush();
+		recordSent(data, 0, n);
+	}
+	
+	/**
+	 * The OutputStream passed to Expect constructor is closed; so is the
+	 * InputStream, if the piping thread is still reading it.<br>
+	 * It is suggested that this method be called after the InputStream has come
+	 * to EOF. For example, when you connect through SSH, send an "exit" command
+	 * first, and then call this method.<br>
+	 * <br>
+	 * 
+	 * When this method is called, the thread which write to the sink of the
+	 * pipe will end.
+	 */
+	public void close() {
+		if (pump != null)
+			pump.stop();
+		endInteraction();
+		try {
+			if (pending.size() > 0)
+				flush();
+			this.output.close();
+		} catch (IOException e) {
+			log.warn("Exception when closing OutputStream", e);
+			//e.printStackTrace();
+		}
+		try {
+			this.inputChannel.close();
+		} catch (IOException e) {
+			log.warn("Exception when closing input Channel", e);
+			//e.printStackTrace();
+		}
+		try {
+			if (selector != null)
+				selector.close();
+		} catch (IOException e) {
+			log.warn("Exception when closing Selector", e);
+		}
+	}
+	
+	public int getDefault_timeout() {
+		return default_timeout;
+	}
+	public void setDefault_timeout(int default_timeout) {
+		this.default_timeout = default_timeout;
+	}
+	public boolean isRestart_timeout_upon_receive() {
+		return restart_timeout_upon_receive;
+	}
+	public void setRestart_timeout_upon_receive(boolean restart_timeout_upon_receive) {
+		this.restart_timeout_upon_receive = restart_timeout_upon_receive;
+	}
+	public void setNotransfer(boolean notransfer) {
+		this.notransfer = notransfer;
+	}
+	public boolean isNotransfer() {
+		return notransfer;
+	}
+	/**
+	 * When on (the default), each call to {@link #expect(int, List)} only
+	 * scans the data that arrived since the last attempt (plus the overlap a
+	 * match could still need) instead of the whole buffer. The results are
+	 * the same either way.
+	 */
+	public void setIncremental_match(boolean incremental_match) {
+		this.incremental_match = incremental_match;
+	}
+	public boolean isIncremental_match() {
+		return incremental_match;
+	}
+	/**
+	 * When on, the regex Patterns of a {@link PatternSet} that keep to a
+	 * subset of the syntax (no anchors, lookaround, back references,
+	 * possessive quantifiers or flags other than DOTALL) are searched for
+	 * together, by one automaton that looks at each new char once; only the
+	 * Pattern that matched is then run to find the bounds of the match. The
+	 * other Patterns are matched one by one as usual. The results are the
+	 * same either way. Off by default.
+	 */
+	public void setCombined_match(boolean combined_match) {
+		this.combined_match = combined_match;
+	}
+	public boolean isCombined_match() {
+		return combined_match;
+	}
+	/**
+	 * @return the text before the last match, same as {@link #before}; null
+	 *         if there was no match
+	 */
+	public CharSequence getBefore() {
+		return before;
+	}
+	/** @return same as {@link #getBefore()}, for the text of the match */
+	public CharSequence getMatch() {
+		return match;
+	}
+	/**
+	 * Hint for incremental matching: the longest text any of the regex
+	 * Patterns can match, so that a pattern which needs more input is not
+	 * retried from the beginning of the buffer. 0 (the default) means
+	 * unknown. Literal Strings do not need the hint. A wrong hint may cause a
+	 * match to be missed.
+	 */
+	public void setMax_match_length(int max_match_length) {
+		this.max_match_length = max_match_length;
+	}
+	public int getMax_match_length() {
+		return max_match_length;
+	}
+	/**
+	 * Sets the Charset used to decode the input for matching, and to encode
+	 * the Strings given to {@link #send(String)}. By default (or with null)
+	 * every input byte becomes one char (ISO-8859-1) and Strings are sent in
+	 * the platform's default charset.
+	 */
+	public void setCharset(Charset charset) {
+		this.charset = charset;
+		this.decoder = newDecoder(charset);
+	}
+	public Charset getCharset() {
+		return charset;
+	}
+	/**
+	 * Limits the internal buffer to the last match_max chars, like Tcl
+	 * Expect's match_max; older chars are dropped (or handed to the spill
+	 * target, see {@link #setSpill(Appendable)}) as new ones arrive, so
+	 * {@link #before} never holds more than that either. 0 (the default)
+	 * means no limit. The bytes of {@link #expectBytes(int, BytePattern...)}
+	 * have their own limit, see {@link #setMatch_max_bytes(int)}.
+	 */
+	public void setMatch_max(int match_max) {
+		buffer.setMax(match_max);
+	}
+	public int getMatch_max() {
+		return buffer.getMax();
+	}
+	/**
+	 * Like {@link #setMatch_max(int)} for the byte window of
+	 * {@link #expectBytes(int, BytePattern...)}: it keeps the last
+	 * match_max_bytes bytes, so {@link #beforeBytes} never holds more. A
+	 * char can take several bytes, hence a limit of its own. 0 (the
+	 * default) means no limit.
+	 */
+	public void setMatch_max_bytes(int match_max_bytes) {
+		this.match_max_bytes = match_max_bytes;
+	}
+	public int getMatch_max_bytes() {
+		return match_max_bytes;
+	}
+	/**
+	 * @param spill
+	 *            receives the chars dropped from the buffer because of
+	 *            match_max, oldest first; null (the default) to forget them
+	 */
+	public void setSpill(Appendable spill) {
+		buffer.setSpill(spill);
+	}
+	/**
+	 * @return how many chars were dropped from the buffer so far because of
+	 *         match_max
+	 */
+	public long getDiscarded() {
+		return buffer.getDiscarded();
+	}
+	/**
+	 * @return how many bytes were dropped from the window of
+	 *         {@link #expectBytes(int, BytePattern...)} so far because of
+	 *         match_max_bytes
+	 */
+	public long getDiscardedBytes() {
+		return bytesDiscarded;
+	}
+
+	/**
+	 * Static method used for convert byte array to string, each byte is
+	 * converted to an ASCII character, if the byte represents a control
+	 * character, it is replaced by a printable caret notation <a
+	 * href="http://en.wikipedia.org/wiki/ASCII">
+	 * http://en.wikipedia.org/wiki/ASCII </a>, or an escape code if possible.
+	 * 
+	 * @param bytes
+	 *            bytes to be printed
+	 * @return String representation of the byte array
+	 */
+	public static String bytesToPrintableString(byte[] bytes) {
+		StringBuilder sb = new StringBuilder();
+		for (byte b : bytes)
+			sb.append(byteToPrintableString(b));
+		return sb.toString();
+	}
+	public static String byteToPrintableString(byte b) {
+		String s = new String(new byte[] { b });
+		// control characters
+		if (b >= 0 && b < 32) s = "^" + (char) (b + 64);
+		else if (b == 127) s = "^?";
+		// some escape characters
+		if (b == 9) s = "\\t";
+		if (b == 10) s = "\\n";
+		if (b == 13) s = "\\r";
+		return s;
+	}
+	
+	/**
+	 * An immutable, compiled list of patterns to expect. Build it once with
+	 * {@link #of(Object...)} and pass it to {@link Expect#expect(int, PatternSet)}
+	 * as often as needed; it may be shared between Expect objects and
+	 * threads.
+	 */
+	public static final class PatternSet {
+		/** A set without any pattern, only EOF or timeout can end expect() */
+		public static final PatternSet EMPTY = of(new ArrayList<Pattern>());
+		
+		final List<Pattern> patterns;
+		/** per pattern: the literal it matches, or null for a real regex */
+		final String[] literals;
+		/**
+		 * per regex: a String every match of it contains, or null; searched
+		 * for with the literals, as id size() + i. It is only a gate: the
+		 * regex is not run until the String has turned up at or after where
+		 * the next attempt starts, and from then on runs over the whole rest
+		 * of the buffer, as a match may reach any distance from it.
+		 */
+		final String[] required;
+		private final AhoCorasick literalMatcher;
+		
+		private PatternSet(List<Pattern> patterns) {
+			this.patterns = Collections.unmodifiableList(patterns);
+			int n = patterns.size();
+			literals = new String[n];
+			required = new String[n];
+			String[] keys = new String[2 * n];
+			boolean any = false;
+			for (int i = 0; i < n; i++) {
+				literals[i] = literalOf(patterns.get(i));
+				if (literals[i] == null)
+					required[i] = requiredLiteralOf(patterns.get(i));
+				keys[i] = literals[i];
+				keys[n + i] = required[i];
+				any |= literals[i] != null || required[i] != null;
+			}
+			literalMatcher = any ? new AhoCorasick(keys) : null;
+		}
+		
+		/**
+		 * Compiles patterns the way {@link Expect#expect(int, Object...)}
+		 * does: {@link String}s are literals, {@link Pattern}s are regular
+		 * expressions, anything else is used as a literal via toString().
+		 */
+		public static PatternSet of(Object... patterns) {
+			ArrayList<Pattern> list = new ArrayList<Pattern>();
+			for (Object o : patterns) {
+				if (o instanceof String)
+					list.add(Pattern.compile(Pattern.quote((String) o))); // requires 1.5 and up
+				else if (o instanceof Pattern)
+					list.add((Pattern) o);
+				else{
+					defaultLog.warn("Object " + o.toString() + " (class: "
+							+ o.getClass().getName() + ") is neither a String nor "
+							+ "a java.util.regex.Pattern, using as a literal String");
+					list.add(Pattern.compile(Pattern.quote(o.toString())));
+				}
+			}
+			return new PatternSet(list);
+		}
+		
+		public static PatternSet of(List<Pattern> patterns) {
+			return new PatternSet(new ArrayList<Pattern>(patterns));
+		}
+		
+		/** @return the compiled patterns, in order (unmodifiable) */
+		public List<Pattern> getPatterns() {
+			return patterns;
+		}
+		
+		public int size() {
+			return patterns.size();
+		}
+		
+		private RegexAutomaton automaton;
+		private boolean automatonBuilt = false;
+		
+		/**
+		 * @return the automaton of the regexes that fit one, built on first
+		 *         use; null if none does
+		 */
+		synchronized RegexAutomaton automaton() {
+			if (!automatonBuilt) {
+				automaton = RegexAutomaton.of(patterns, literals);
+				automatonBuilt = true;
+			}
+			return automaton;
+		}
+		
+		/** @return a fresh streaming search over the literals, or null */
+		AhoCorasick.Scanner literalScanner() {
+			return literalMatcher == null ? null : literalMatcher.new Scanner();
+		}
+		
+		@Override
+		public String toString() {
+			return patterns.toString();
+		}
+		
+		private static int cacheSize = 64;
+		private static long cacheHits = 0, cacheMisses = 0;
+		/** keyed on the argument list, least recently used entry goes first */
+		@SuppressWarnings("serial")
+		private static final LinkedHashMap<List<Object>, PatternSet> cache =
+				new LinkedHashMap<List<Object>, PatternSet>(16, 0.75f, true) {
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<List<Object>, PatternSet> eldest) {
+				return size() > cacheSize;
+			}
+		};
+		
+		/**
+		 * Same as {@link #of(Object...)}, but returns the set compiled for an
+		 * equal argument list before, if it is still in the LRU cache. Strings
+		 * are compared by value, Patterns by identity (so keep your Patterns
+		 * in constants to benefit from the cache), anything else by its
+		 * current toString(), which is what it is compiled from.
+		 */
+		public static PatternSet cached(Object... patterns) {
+			Object[] args = patterns.clone();
+			for (int i = 0; i < args.length; i++)
+				if (!(args[i] instanceof String) && !(args[i] instanceof Pattern))
+					args[i] = args[i].toString();
+			List<Object> key = Arrays.asList(args);
+			synchronized (cache) {
+				PatternSet set = cache.get(key);
+				if (set != null) {
+					cacheHits++;
+					return set;
+				}
+				cacheMisses++;
+				set = of(patterns);
+				cache.put(key, set);
+				return set;
+			}
+		}
+		
+		/**
+		 * Sets the number of argument lists the cache used by
+		 * {@link #cached(Object...)} remembers, 0 turns the cache off.
+		 */
+		public static void setCacheSize(int size) {
+			synchronized (cache) {
+				cacheSize = size;
+				Iterator<List<Object>> it = cache.keySet().iterator();
+				for (int n = cache.size(); n > size; n--) {
+					it.next();
+					it.remove();
+				}
+			}
+		}
+		public static int getCacheSize() {
+			synchronized (cache) {
+				return cacheSize;
+			}
+		}
+		public static long getCacheHits() {
+			synchronized (cache) {
+				return cacheHits;
+			}
+		}
+		public static long getCacheMisses() {
+			synchronized (cache) {
+				return cacheMisses;
+			}
+		}
+	}
+	
+	/**
+	 * The event loop behind {@link Expect#expectAsync(Duration, PatternSet)}:
+	 * one daemon thread and one Selector for the asynchronous expects of
+	 * all Expect objects. The timer wakes the loop up for a timeout.
+	 */
+	static final class EventLoop implements Runnable {
+		private static EventLoop instance;
+		
+		static synchronized EventLoop get() throws IOException {
+			if (instance == null) {
+				instance = new EventLoop();
+				Thread t = new Thread(instance, "Expect event loop");
+				t.setDaemon(true);
+				t.start();
+			}
+			return instance;
+		}
+		
+		final Selector selector;
+		private final Queue<AsyncExpect> submitted =
+				new ConcurrentLinkedQueue<AsyncExpect>();
+		/** expects whose timer fired, to be failed on the loop thread */
+		private final Queue<AsyncExpect> expired =
+				new ConcurrentLinkedQueue<AsyncExpect>();
+		private EventLoop() throws IOException {
+			selector = Selector.open();
+		}
+		
+		void submit(AsyncExpect op) {
+			submitted.add(op);
+			selector.wakeup();
+		}
+		
+		/** called by the timer thread */
+		void expired(AsyncExpect op) {
+			expired.add(op);
+			selector.wakeup();
+		}
+		
+		@Override
+		public void run() {
+			while (true) {
+				try {
+					AsyncExpect op;
+					while ((op = submitted.poll()) != null)
+						op.start(this);
+					while ((op = expired.poll()) != null)
+						op.expire();
+					selector.select();
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						op = (AsyncExpect) key.attachment();
+						if (op != null)
+							op.readable(this);
+					}
+				} catch (Throwable t) {
+					defaultLog.error("Unexpected exception in the event loop", t);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * A hashed timing wheel (as in Varghese and Lauck's paper, or Netty's
+	 * HashedWheelTimer) for the timeouts of all Expect objects: arming and
+	 * cancelling a timeout is O(1), and one daemon thread advances the
+	 * wheel by a tick of 10 milliseconds, driven by System.nanoTime(). The
+	 * thread sleeps while no timeout is armed. A timeout never fires early,
+	 * and at most about one tick late. The tasks of the timeouts that fire
+	 * run on a pool of their own, so a slow one does not hold up the wheel.
+	 */
+	static final class TimerWheel implements Runnable {
+		private static final long TICK = TimeUnit.MILLISECONDS.toNanos(10);
+		private static final int SIZE = 512;	// a power of 2
+		private static TimerWheel instance;
+		
+		static synchronized TimerWheel get() {
+			if (instance == null)
+				instance = start("Expect timer");
+			return instance;
+		}
+		
+		/** @return a new wheel with a daemon thread of its own */
+		static TimerWheel start(String threadName) {
+			TimerWheel wheel = new TimerWheel(
+					newDaemonThreadPool(threadName + " task"));
+			wheel.worker = new Thread(wheel, threadName);
+			wheel.worker.setDaemon(true);
+			wheel.worker.start();
+			return wheel;
+		}
+		
+		/** runs the tasks of the timeouts that fire */
+		private final Executor tasks;
+		/** doubly linked lists of timeouts, one per bucket */
+		private final Timeout[] heads = new Timeout[SIZE];
+		private final Queue<Timeout> armed = new ConcurrentLinkedQueue<Timeout>();
+		private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<Timeout>();
+		private final long start = System.nanoTime();
+		private Thread worker;
+		private volatile boolean idle = false;
+		/** ticks since start that have been processed, timeouts in the wheel */
+		private long tick = 0;
+		private int count = 0;
+		
+		private TimerWheel(Executor tasks) {
+			this.tasks = tasks;
+		}
+		
+		/**
+		 * @return a handle to cancel the timeout with; task runs on the
+		 *         timer thread once delayNanos have passed
+		 */
+		Timeout arm(long delayNanos, Runnable task) {
+			long deadline = System.nanoTime() - start + delayNanos;
+			if (deadline < 0)
+				deadline = Long.MAX_VALUE;		// overflow: practically never
+			Timeout t = new Timeout(this, deadline, task);
+			armed.add(t);
+			if (idle)
+				LockSupport.unpark(worker);
+			return t;
+		}
+		
+		@Override
+		public void run() {
+			while (true) {
+				long next = TICK * (tick + 1);
+				long sleep;
+				while ((sleep = next - (System.nanoTime() - start)) > 0) {
+					if (count == 0 && armed.isEmpty()) {
+						idle = true;
+						if (count == 0 && armed.isEmpty())
+							LockSupport.park(this);
+						idle = false;
+						// nothing was in the wheel, skip the ticks slept through
+						tick = Math.max(tick, (System.nanoTime() - start) / TICK);
+						next = TICK * (tick + 1);
+					} else {
+						LockSupport.parkNanos(this, sleep);
+					}
+				}
+				try {
+					removeCancelled();
+					addArmed();
+					expireBucket();
+				} catch (Throwable t) {
+					defaultLog.error("Unexpected exception in the timer", t);
+				}
+				tick++;
+			}
+		}
+		
+		private void addArmed() {
+			Timeout t;
+			while ((t = armed.poll()) != null) {
+				if (t.state.get() != Timeout.PENDING)
+					continue;
+				long ticks = t.deadline / TICK;
+				t.rounds = (ticks - tick) / SIZE;
+				t.bucket = (int) (Math.max(ticks, tick) & (SIZE - 1));
+				t.next = heads[t.bucket];
+				if (t.next != null)
+					t.next.prev = t;
+				heads[t.bucket] = t;
+				count++;
+			}
+		}
+		
+		private void removeCancelled() {
+			Timeout t;
+			while ((t = cancelled.poll()) != null)
+				if (t.bucket >= 0)
+					unlink(t);
+		}
+		
+		private void expireBucket() {
+			Timeout t = heads[(int) (tick & (SIZE - 1))];
+			while (t != null) {
+				Timeout next = t.next;
+				if (t.rounds <= 0) {
+					unlink(t);
+					if (t.state.compareAndSet(Timeout.PENDING, Timeout.EXPIRED))
+						tasks.execute(t.task);
+				} else {
+					t.rounds--;
+				}
+				t = next;
+			}
+		}
+		
+		private void unlink(Timeout t) {
+			if (t.prev != null)
+				t.prev.next = t.next;
+			else
+				heads[t.bucket] = t.next;
+			if (t.next != null)
+				t.next.prev = t.prev;
+			t.prev = t.next = null;
+			t.bucket = -1;
+			count--;
+		}
+		
+		/** one armed timeout */
+		static final class Timeout {
+			static final int PENDING = 0, CANCELLED = 1, EXPIRED = 2;
+			private final TimerWheel wheel;
+			/** nanoseconds since the wheel's start */
+			private final long deadline;
+			private final Runnable task;
+			final AtomicInteger state = new AtomicInteger(PENDING);
+			// owned by the timer thread
+			private long rounds;
+			private int bucket = -1;
+			private Timeout prev, next;
+			
+			Timeout(TimerWheel wheel, long deadline, Runnable task) {
+				this.wheel = wheel;
+				this.deadline = deadline;
+				this.task = task;
+			}
+			
+			/** @return false if it has fired (or been cancelled) already */
+			boolean cancel() {
+				if (!state.compareAndSet(PENDING, CANCELLED))
+					return false;
+				wheel.cancelled.add(this);
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * The outcome of an expect operation that is not bound to the fields of
+	 * one Expect object, e.g. one run by an {@link ExpectGroup} or
+	 * {@link Expect#expectAsync(Duration, PatternSet)}.
+	 */
+	public static final class MatchResult {
+		/** the session the result is about, null for a timeout of a group */
+		public final Expect expect;
+		/** position of the matched pattern, or one of the RETV_ constants */
+		public final int index;
+		/** same as {@link Expect#before} and {@link Expect#match} of the session */
+		public final String before, match;
+		private final boolean success;
+		
+		MatchResult(Expect expect, int index) {
+			this.expect = expect;
+			this.index = index;
+			this.success = expect != null && expect.isSuccess;
+			this.before = success ? expect.before : null;
+			this.match = success ? expect.match : null;
+		}
+		
+		/** @return same as {@link Expect#isSuccess} of the session */
+		public boolean isSuccess() {
+			return success;
+		}
+		
+		@Override
+		public String toString() {
+			return "MatchResult[index=" + index + ", match=" + match + "]";
+		}
+	}
+	
+	/**
+	 * A byte sequence to wait for with
+	 * {@link Expect#expectBytes(int, BytePattern...)}. Each byte of the input
+	 * is compared under a mask, so individual bits or whole bytes (mask 0)
+	 * can be wildcards.
+	 */
+	public static final class BytePattern {
+		private final byte[] value, mask;
+		
+		private BytePattern(byte[] value, byte[] mask) {
+			if (value.length != mask.length)
+				throw new IllegalArgumentException(
+						"value and mask differ in length");
+			this.value = new byte[value.length];
+			this.mask = mask.clone();
+			for (int i = 0; i < value.length; i++)
+				this.value[i] = (byte) (value[i] & mask[i]);
+		}
+		
+		/** @return a pattern matching exactly these bytes */
+		public static BytePattern of(byte[] needle) {
+			byte[] mask = new byte[needle.length];
+			Arrays.fill(mask, (byte) 0xff);
+			return new BytePattern(needle, mask);
+		}
+		
+		/**
+		 * @return a pattern matching input b at position i if
+		 *         {@code (b & mask[i]) == (value[i] & mask[i])}
+		 */
+		public static BytePattern masked(byte[] value, byte[] mask) {
+			return new BytePattern(value, mask);
+		}
+		
+		/**
+		 * @param hex
+		 *            bytes in hex, whitespace is ignored, "??" matches any
+		 *            byte, e.g. {@code "7e ?? ?? 0d 0a"}
+		 */
+		public static BytePattern hex(String hex) {
+			hex = hex.replaceAll("\\s", "");
+			if (hex.length() % 2 != 0)
+				throw new IllegalArgumentException("odd number of digits: " + hex);
+			byte[] value = new byte[hex.length() / 2];
+			byte[] mask = new byte[value.length];
+			for (int i = 0; i < value.length; i++) {
+				String b = hex.substring(2 * i, 2 * i + 2);
+				if (!b.equals("??")) {
+					value[i] = (byte) Integer.parseInt(b, 16);
+					mask[i] = (byte) 0xff;
+				}
+			}
+			return new BytePattern(value, mask);
+		}
+		
+		public int length() {
+			return value.length;
+		}
+		
+		/**
+		 * @return length of the longest proper prefix of this pattern that
+		 *         data[0, end) ends with
+		 */
+		int prefixAtEnd(byte[] data, int end) {
+			for (int k = Math.min(value.length - 1, end); k > 0; k--) {
+				int i = 0;
+				while (i < k && (data[end - k + i] & mask[i]) == value[i])
+					i++;
+				if (i == k)
+					return k;
+			}
+			return 0;
+		}
+		
+		/** @return first position in data[from, end) where this matches, or -1 */
+		int indexIn(byte[] data, int from, int end) {
+			int last = end - value.length;
+			if (value.length == 0)
+				return from <= end ? from : -1;
+			byte first = value[0], firstMask = mask[0];
+			for (int i = from; i <= last; i++) {
+				if ((data[i] & firstMask) != first)
+					continue;
+				int k = 1;
+				while (k < value.length && (data[i + k] & mask[k]) == value[k])
+					k++;
+				if (k == value.length)
+					return i;
+			}
+			return -1;
+		}
+		
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			for (int i = 0; i < value.length; i++) {
+				if (i > 0)
+					sb.append(' ');
+				sb.append(mask[i] == 0 ? "??" : String.format(
+						mask[i] == (byte) 0xff ? "%02x" : "%02x/%02x",
+						value[i], mask[i]));
+			}
+			return sb.toString();
+		}
+	}
+	
+	/**
+	 * Aho-Corasick automaton over a set of literal Strings, finds the first
+	 * occurrence of every literal in a single pass over the input.
+	 */
+	static final class AhoCorasick {
+		/** per state: sorted transition chars and the states they lead to */
+		private final char[][] keys;
+		private final int[][] next;
+		private final int[] fail;
+		/** per state: lowest literal id ending here, or -1 */
+		private final int[] out;
+		/** per state: next state on the failure chain with an output, 0 if none */
+		private final int[] outLink;
+		/** per literal id: next id with the same text, or -1 */
+		private final int[] sameText;
+		/** per literal id: its length */
+		private final int[] length;
+		
+		/**
+		 * @param literals
+		 *            indexed by id, null entries are skipped
+		 */
+		AhoCorasick(String[] literals) {
+			List<TreeMap<Character, Integer>> trie =
+					new ArrayList<TreeMap<Character, Integer>>();
+			List<Integer> outs = new ArrayList<Integer>();
+			trie.add(new TreeMap<Character, Integer>());
+			outs.add(-1);
+			sameText = new int[literals.length];
+			length = new int[literals.length];
+			Arrays.fill(sameText, -1);
+			for (int id = literals.length - 1; id >= 0; id--) {
+				if (literals[id] == null)
+					continue;
+				length[id] = literals[id].length();
+				int s = 0;
+				for (int i = 0; i < literals[id].length(); i++) {
+					Integer t = trie.get(s).get(literals[id].charAt(i));
+					if (t == null) {
+						t = trie.size();
+						trie.get(s).put(literals[id].charAt(i), t);
+						trie.add(new TreeMap<Character, Integer>());
+						outs.add(-1);
+					}
+					s = t;
+				}
+				sameText[id] = outs.get(s);	// ids are added highest first
+				outs.set(s, id);
+			}
+			
+			int size = trie.size();
+			keys = new char[size][];
+			next = new int[size][];
+			fail = new int[size];
+			out = new int[size];
+			outLink = new int[size];
+			for (int s = 0; s < size; s++) {
+				keys[s] = new char[trie.get(s).size()];
+				next[s] = new int[trie.get(s).size()];
+				int k = 0;
+				for (Map.Entry<Character, Integer> e : trie.get(s).entrySet()) {
+					keys[s][k] = e.getKey();
+					next[s][k++] = e.getValue();
+				}
+				out[s] = outs.get(s);
+			}
+			// breadth first, so fail[] of shallower states is ready
+			int[] queue = new int[size];
+			int head = 0, tail = 0;
+			for (int t : next[0])
+				queue[tail++] = t;
+			while (head < tail) {
+				int s = queue[head++];
+				for (int k = 0; k < keys[s].length; k++) {
+					int t = next[s][k];
+					int f = fail[s];
+					while (f != 0 && goTo(f, keys[s][k]) < 0)
+						f = fail[f];
+					int g = goTo(f, keys[s][k]);
+					fail[t] = g < 0 ? 0 : g;
+					outLink[t] = out[fail[t]] >= 0 && fail[t] != 0 ? fail[t]
+							: outLink[fail[t]];
+					queue[tail++] = t;
+				}
+			}
+		}
+		
+		private int goTo(int s, char c) {
+			int k = Arrays.binarySearch(keys[s], c);
+			return k < 0 ? -1 : next[s][k];
+		}
+		
+		private int step(int s, char c) {
+			while (true) {
+				int t = goTo(s, c);
+				if (t >= 0)
+					return t;
+				if (s == 0)
+					return 0;
+				s = fail[s];
+			}
+		}
+		
+		/**
+		 * Streaming search state: remembers how far the input has been
+		 * scanned, so each call only looks at newly appended chars. Offsets
+		 * are absolute, see {@link CharRing#base()}; occurrences that start
+		 * in chars already dropped from the buffer do not count.
+		 */
+		final class Scanner {
+			private int state = 0;
+			private long pos = -1;
+			private final long[] firstEnd = new long[sameText.length];
+			private final long[] lastEnd = new long[sameText.length];
+			
+			Scanner() {
+				Arrays.fill(firstEnd, -1);
+				Arrays.fill(lastEnd, -1);
+			}
+			
+			/** @return how many chars were scanned */
+			long scan(CharRing input) {
+				long base = input.base();
+				if (pos < base) {	// first call, or chars were skipped
+					pos = base;
+					state = 0;
+					for (int id = out[0]; id >= 0; id = sameText[id])
+						firstEnd[id] = lastEnd[id] = base;	// empty literal
+				}
+				long start = pos;
+				for (long end = base + input.length(); pos < end; pos++) {
+					state = step(state, input.charAt((int) (pos - base)));
+					for (int s = out[state] >= 0 ? state : outLink[state]; s != 0; s = outLink[s])
+						for (int id = out[s]; id >= 0; id = sameText[id])
+							if (pos + 1 - length[id] >= base) {
+								if (firstEnd[id] < 0)
+									firstEnd[id] = pos + 1;
+								lastEnd[id] = pos + 1;
+							}
+				}
+				return pos - start;
+			}
+			
+			/**
+			 * @return absolute end offset of the first occurrence of literal
+			 *         id, or -1 if it has not occurred yet
+			 */
+			long firstEnd(int id) {
+				return firstEnd[id];
+			}
+			
+			/**
+			 * @return absolute end offset of the last occurrence of literal
+			 *         id, or -1 if it has not occurred yet
+			 */
+			long lastEnd(int id) {
+				return lastEnd[id];
+			}
+		}
+	}
+	
+	/**
+	 * The regular expressions of a {@link PatternSet} that keep to a subset
+	 * of the syntax (chars, escapes, classes, ., groups, alternation, greedy
+	 * and reluctant quantifiers; no anchors, lookaround, back references,
+	 * possessive quantifiers or flags other than DOTALL), compiled into one
+	 * NFA. A {@link Dfa} built lazily on top of it tells, in a single pass
+	 * over the input, which of them have matched somewhere so far.
+	 */
+	static final class RegexAutomaton {
+		private static final int MAX_NFA_STATES = 10000;
+		private static final int MAX_DFA_STATES = 2000;
+		
+		private static final char[] ANY = { 0, 0xFFFF };
+		private static final char[] DIGIT = { '0', '9' };
+		private static final char[] SPACE = { '\t', '\r', ' ', ' ' };
+		private static final char[] WORD = { '0', '9', 'A', 'Z', '_', '_', 'a', 'z' };
+		private static final char[] NOT_LINE_END = complement(new char[] {
+				'\n', '\n', '\r', '\r', '\u0085', '\u0085', '\u2028', '\u2029' });
+		
+		/** per NFA state: the chars it consumes as sorted [lo, hi] pairs, or null */
+		private final char[][] ranges;
+		/** per NFA state: where it goes after consuming a char */
+		private final int[] to;
+		/** per NFA state: where it may go without consuming anything */
+		private final int[][] eps;
+		/** per NFA state: the pattern it accepts, or -1 */
+		private final int[] accept;
+		/** per pattern: whether it is compiled in */
+		private final boolean[] handled;
+		
+		private RegexAutomaton(Builder b, boolean[] handled) {
+			int n = b.ranges.size();
+			ranges = b.ranges.toArray(new char[n][]);
+			to = new int[n];
+			eps = new int[n][];
+			accept = new int[n];
+			for (int s = 0; s < n; s++) {
+				to[s] = b.to.get(s);
+				accept[s] = b.accept.get(s);
+				eps[s] = new int[b.eps.get(s).size()];
+				for (int k = 0; k < eps[s].length; k++)
+					eps[s][k] = b.eps.get(s).get(k);
+			}
+			this.handled = handled;
+		}
+		
+		/**
+		 * @param literals
+		 *            per pattern: non null to leave it out, as it is matched
+		 *            as a literal anyway
+		 * @return the automaton of the patterns that fit, or null if none
+		 */
+		static RegexAutomaton of(List<Pattern> patterns, String[] literals) {
+			Builder b = new Builder();
+			int start = b.state();
+			boolean[] handled = new boolean[patterns.size()];
+			boolean any = false;
+			for (int i = 0; i < handled.length; i++) {
+				if (literals[i] != null)
+					continue;
+				int mark = b.ranges.size();
+				try {
+					int[] f = new Parser(patterns.get(i), b).parse();
+					int end = b.state();
+					b.accept.set(end, i);
+					b.eps(f[1], end);
+					b.eps(start, f[0]);
+					handled[i] = any = true;
+				} catch (IllegalArgumentException e) {
+					b.truncate(mark);		// not in the subset, or too big
+				}
+			}
+			return any ? new RegexAutomaton(b, handled) : null;
+		}
+		
+		boolean handles(int pattern) {
+			return handled[pattern];
+		}
+		
+		private static final class Builder {
+			final List<char[]> ranges = new ArrayList<char[]>();
+			final List<Integer> to = new ArrayList<Integer>();
+			final List<List<Integer>> eps = new ArrayList<List<Integer>>();
+			final List<Integer> accept = new ArrayList<Integer>();
+			
+			int state() {
+				if (ranges.size() == MAX_NFA_STATES)
+					throw new IllegalArgumentException("too many states");
+				ranges.add(null);
+				to.add(-1);
+				eps.add(new ArrayList<Integer>(2));
+				accept.add(-1);
+				return ranges.size() - 1;
+			}
+			
+			/** @return a fragment consuming one char of set */
+			int[] consume(char[] set) {
+				int s = state(), e = state();
+				ranges.set(s, set);
+				to.set(s, e);
+				return new int[] { s, e };
+			}
+			
+			void eps(int from, int to) {
+				eps.get(from).add(to);
+			}
+			
+			void truncate(int n) {
+				while (ranges.size() > n) {
+					int last = ranges.size() - 1;
+					ranges.remove(last);
+					to.remove(last);
+					eps.remove(last);
+					accept.remove(last);
+				}
+			}
+		}
+		
+		/**
+		 * Thompson construction over the source of one Pattern; fragments are
+		 * {start, end} pairs of NFA states. Throws IllegalArgumentException
+		 * for anything outside the subset.
+		 */
+		private static final class Parser {
+			private final String s;
+			private final boolean dotAll;
+			private final Builder b;
+			private int i = 0;
+			
+			Parser(Pattern p, Builder b) {
+				if ((p.flags() & ~Pattern.DOTALL) != 0)
+					throw new IllegalArgumentException("flags");
+				this.s = p.pattern();
+				this.dotAll = p.flags() != 0;
+				this.b = b;
+			}
+			
+			int[] parse() {
+				int[] f = alternation();
+				if (i < s.length())
+					throw new IllegalArgumentException("unbalanced )");
+				return f;
+			}
+			
+			private int[] alternation() {
+				int[] f = sequence();
+				while (i < s.length() && s.charAt(i) == '|') {
+					i++;
+					int[] g = sequence();
+					int start = b.state(), end = b.state();
+					b.eps(start, f[0]);
+					b.eps(start, g[0]);
+					b.eps(f[1], end);
+					b.eps(g[1], end);
+					f = new int[] { start, end };
+				}
+				return f;
+			}
+			
+			private int[] sequence() {
+				int start = b.state();
+				int[] f = { start, start };
+				while (i < s.length() && s.charAt(i) != '|' && s.charAt(i) != ')') {
+					int[] g = repeat();
+					b.eps(f[1], g[0]);
+					f[1] = g[1];
+				}
+				return f;
+			}
+			
+			private int[] repeat() {
+				int atomStart = i;
+				int[] f = atom();
+				if (i == s.length() || "?*+{".indexOf(s.charAt(i)) < 0)
+					return f;
+				if (s.startsWith("\\Q", atomStart) && i - atomStart != 5)
+					throw new IllegalArgumentException("quantified \\Q...\\E");
+				int min, max;
+				switch (s.charAt(i++)) {
+				case '?':
+					min = 0;
+					max = 1;
+					break;
+				case '*':
+					min = 0;
+					max = -1;
+					break;
+				case '+':
+					min = 1;
+					max = -1;
+					break;
+				default:
+					int close = s.indexOf('}', i);
+					String[] bounds = s.substring(i, close).split(",", -1);
+					min = Integer.parseInt(bounds[0]);
+					max = bounds.length == 1 ? min
+							: bounds[1].isEmpty() ? -1 : Integer.parseInt(bounds[1]);
+					i = close + 1;
+				}
+				if (i < s.length() && s.charAt(i) == '+')
+					throw new IllegalArgumentException("possessive");
+				if (i < s.length() && s.charAt(i) == '?')
+					i++;		// reluctant, matches the same strings
+				if (i < s.length() && "?*+{".indexOf(s.charAt(i)) >= 0)
+					throw new IllegalArgumentException("stacked quantifiers");
+				if (min > 1000 || max > 1000)
+					throw new IllegalArgumentException("too many repetitions");
+				int end = i;
+				int copies = max < 0 ? Math.max(min, 1) : max;
+				int[] r = null;
+				for (int k = 0; k < copies; k++) {
+					int[] a = f;
+					if (k > 0) {	// parse the atom again for another copy
+						i = atomStart;
+						a = atom();
+					}
+					if (max < 0 && k == copies - 1)
+						b.eps(a[1], a[0]);
+					if (k >= min) {
+						int start = b.state(), e = b.state();
+						b.eps(start, a[0]);
+						b.eps(start, e);
+						b.eps(a[1], e);
+						a = new int[] { start, e };
+					}
+					if (r == null) {
+						r = a;
+					} else {
+						b.eps(r[1], a[0]);
+						r[1] = a[1];
+					}
+				}
+				i = end;
+				if (r == null) {
+					int empty = b.state();
+					r = new int[] { empty, empty };
+				}
+				return r;
+			}
+			
+			private int[] atom() {
+				char c = s.charAt(i);
+				switch (c) {
+				case '(':
+					i++;
+					if (s.startsWith("?:", i))
+						i += 2;
+					else if (s.startsWith("?", i))
+						throw new IllegalArgumentException("special group");
+					int[] f = alternation();
+					i++;	// the ), Pattern checked it is there
+					return f;
+				case '[':
+					return b.consume(charClass());
+				case '.':
+					i++;
+					return b.consume(dotAll ? ANY : NOT_LINE_END);
+				case '\\':
+					if (s.startsWith("\\Q", i))
+						return quoted();
+					return b.consume(escape());
+				case '^':
+				case '$':
+				case '?':
+				case '*':
+				case '+':
+				case '{':
+					throw new IllegalArgumentException("anchor");
+				default:
+					i++;
+					return b.consume(single(c));
+				}
+			}
+			
+			private int[] quoted() {
+				int end = s.indexOf("\\E", i + 2);
+				if (end < 0)
+					end = s.length();
+				int start = b.state();
+				int[] f = { start, start };
+				for (int k = i + 2; k < end; k++) {
+					int[] g = b.consume(single(s.charAt(k)));
+					b.eps(f[1], g[0]);
+					f[1] = g[1];
+				}
+				i = Math.min(end + 2, s.length());
+				return f;
+			}
+			
+			private char[] escape() {
+				char e = s.charAt(i + 1);
+				i += 2;
+				switch (e) {
+				case 'd':
+					return DIGIT;
+				case 'D':
+					return complement(DIGIT);
+				case 's':
+					return SPACE;
+				case 'S':
+					return complement(SPACE);
+				case 'w':
+					return WORD;
+				case 'W':
+					return complement(WORD);
+				case 't':
+					return single('\t');
+				case 'n':
+					return single('\n');
+				case 'r':
+					return single('\r');
+				case 'f':
+					return single('\f');
+				case 'a':
+					return single('\u0007');
+				case 'e':
+					return single('\u001B');
+				case 'x':
+					return hex(2);
+				case 'u':
+					return hex(4);
+				default:
+					if (Character.isLetterOrDigit(e))
+						throw new IllegalArgumentException("escape \\" + e);
+					return single(e);
+				}
+			}
+			
+			private char[] hex(int digits) {
+				if (i + digits > s.length())
+					throw new IllegalArgumentException("hex escape");
+				try {
+					char c = (char) Integer.parseInt(s.substring(i, i + digits), 16);
+					i += digits;
+					return single(c);
+				} catch (NumberFormatException e) {
+					throw new IllegalArgumentException("hex escape");	// \x{...}
+				}
+			}
+			
+			private char[] charClass() {
+				i++;
+				boolean negate = s.charAt(i) == '^';
+				if (negate)
+					i++;
+				List<char[]> parts = new ArrayList<char[]>();
+				for (boolean first = true; ; first = false) {
+					char c = s.charAt(i);
+					if (c == ']' && !first) {
+						i++;
+						break;
+					}
+					if (c == '[' || c == ']' || s.startsWith("&&", i)
+							|| s.startsWith("\\Q", i))
+						throw new IllegalArgumentException("class construct");
+					char[] set = member();
+					boolean range = s.charAt(i) == '-' && s.charAt(i + 1) != ']';
+					if (range && (set.length != 2 || set[0] != set[1]))
+						throw new IllegalArgumentException("range");
+					if (range) {
+						i++;
+						char[] hi = member();
+						if (hi.length != 2 || hi[0] != hi[1] || hi[0] < set[0])
+							throw new IllegalArgumentException("range");
+						set = new char[] { set[0], hi[0] };
+					}
+					parts.add(set);
+				}
+				char[] set = union(parts);
+				return negate ? complement(set) : set;
+			}
+			
+			private char[] member() {
+				char c = s.charAt(i);
+				if (c == '\\')
+					return escape();
+				if (c == '[')
+					throw new IllegalArgumentException("class construct");
+				i++;
+				return single(c);
+			}
+			
+			private static char[] single(char c) {
+				if (Character.isSurrogate(c))
+					throw new IllegalArgumentException("surrogate");
+				return new char[] { c, c };
+			}
+		}
+		
+		private static char[] union(List<char[]> sets) {
+			List<char[]> pairs = new ArrayList<char[]>();
+			for (char[] set : sets)
+				for (int k = 0; k < set.length; k += 2)
+					pairs.add(new char[] { set[k], set[k + 1] });
+			Collections.sort(pairs, new Comparator<char[]>() {
+				@Override
+				public int compare(char[] a, char[] b) {
+					return a[0] - b[0];
+				}
+			});
+			StringBuilder out = new StringBuilder();
+			for (char[] p : pairs) {
+				int n = out.length();
+				if (n > 0 && p[0] <= out.charAt(n - 1) + 1) {
+					if (p[1] > out.charAt(n - 1))
+						out.setCharAt(n - 1, p[1]);
+				} else {
+					out.append(p[0]).append(p[1]);
+				}
+			}
+			return out.toString().toCharArray();
+		}
+		
+		private static char[] complement(char[] set) {
+			StringBuilder out = new StringBuilder();
+			int next = 0;
+			for (int k = 0; k < set.length; k += 2) {
+				if (set[k] > next)
+					out.append((char) next).append((char) (set[k] - 1));
+				next = set[k + 1] + 1;
+			}
+			if (next <= 0xFFFF)
+				out.append((char) next).append((char) 0xFFFF);
+			return out.toString().toCharArray();
+		}
+		
+		private static boolean contains(char[] set, char c) {
+			for (int k = 0; k < set.length && set[k] <= c; k += 2)
+				if (c <= set[k + 1])
+					return true;
+			return false;
+		}
+		
+		/**
+		 * The DFA of the automaton, each state a set of NFA states, built as
+		 * the input gets to it; after MAX_DFA_STATES it starts over. Not
+		 * thread safe, each Expect object has its own.
+		 */
+		final class Dfa {
+			private final Map<IntBuffer, Integer> index = new HashMap<IntBuffer, Integer>();
+			/** per DFA state: its NFA states that consume or accept */
+			private final List<int[]> sets = new ArrayList<int[]>();
+			/** per DFA state: the next state for chars below 128, -1 if not built yet */
+			private final List<int[]> asciiNext = new ArrayList<int[]>();
+			private final List<Map<Character, Integer>> otherNext =
+					new ArrayList<Map<Character, Integer>>();
+			/** per DFA state: the patterns it accepts */
+			private final List<int[]> accepts = new ArrayList<int[]>();
+			private final boolean[] mark = new boolean[to.length];
+			private final int[] stack = new int[to.length];
+			private int generation = 0;
+			
+			private int start() {
+				return intern(closure(new int[0], 0));
+			}
+			
+			int next(int state, char c) {
+				Integer known;
+				if (c < 128) {
+					int t = asciiNext.get(state)[c];
+					if (t >= 0)
+						return t;
+				} else if ((known = otherNext.get(state).get(c)) != null) {
+					return known;
+				}
+				int[] set = sets.get(state);
+				int[] moved = new int[set.length];
+				int n = 0;
+				for (int s : set)
+					if (ranges[s] != null && contains(ranges[s], c))
+						moved[n++] = to[s];
+				int g = generation;
+				int t = intern(closure(moved, n));
+				if (g == generation) {	// else state is gone with the old cache
+					if (c < 128)
+						asciiNext.get(state)[c] = t;
+					else
+						otherNext.get(state).put(c, t);
+				}
+				return t;
+			}
+			
+			/**
+			 * @return the states reachable from seeds[0, n) and the start state
+			 *         (the search is not anchored) without consuming input,
+			 *         leaving out those that neither consume nor accept
+			 */
+			private int[] closure(int[] seeds, int n) {
+				int top = 0;
+				stack[top++] = 0;
+				mark[0] = true;
+				for (int k = 0; k < n; k++)
+					if (!mark[seeds[k]]) {
+						mark[seeds[k]] = true;
+						stack[top++] = seeds[k];
+					}
+				int[] found = new int[to.length];
+				int count = 0;
+				while (top > 0) {
+					int s = stack[--top];
+					if (ranges[s] != null || accept[s] >= 0)
+						found[count++] = s;
+					for (int t : eps[s])
+						if (!mark[t]) {
+							mark[t] = true;
+							stack[top++] = t;
+						}
+				}
+				Arrays.fill(mark, false);
+				int[] set = Arrays.copyOf(found, count);
+				Arrays.sort(set);
+				return set;
+			}
+			
+			private int intern(int[] set) {
+				IntBuffer key = IntBuffer.wrap(set);
+				Integer known = index.get(key);
+				if (known != null)
+					return known;
+				if (sets.size() == MAX_DFA_STATES) {
+					index.clear();
+					sets.clear();
+					asciiNext.clear();
+					otherNext.clear();
+					accepts.clear();
+					generation++;
+				}
+				int[] next = new int[128];
+				Arrays.fill(next, -1);
+				int n = 0;
+				for (int s : set)
+					if (accept[s] >= 0)
+						n++;
+				int[] acc = new int[n];
+				n = 0;
+				for (int s : set)
+					if (accept[s] >= 0)
+						acc[n++] = accept[s];
+				index.put(key, sets.size());
+				sets.add(set);
+				asciiNext.add(next);
+				otherNext.add(new HashMap<Character, Integer>());
+				accepts.add(acc);
+				return sets.size() - 1;
+			}
+			
+			/**
+			 * Streaming search state of one expect() call: remembers how far
+			 * the input has been scanned and which patterns have matched.
+			 * Starts over if chars are dropped from the buffer, and gives up
+			 * on a surrogate char, as Pattern matches by code point.
+			 */
+			final class Scanner {
+				private int state;
+				private long base = -1, pos;
+				private final boolean[] matched = new boolean[handled.length];
+				private boolean gaveUp = false;
+				
+				/** @return how many chars were scanned */
+				long scan(CharRing input) {
+					if (gaveUp)
+						return 0;
+					if (input.base() != base) {
+						base = pos = input.base();
+						Arrays.fill(matched, false);
+						state = start();
+						for (int id : accepts.get(state))
+							matched[id] = true;
+					}
+					long start = pos;
+					for (long end = base + input.length(); pos < end; pos++) {
+						char c = input.charAt((int) (pos - base));
+						if (Character.isSurrogate(c)) {
+							gaveUp = true;
+							break;
+						}
+						state = next(state, c);
+						for (int id : accepts.get(state))
+							matched[id] = true;
+					}
+					return pos - start;
+				}
+				
+				/**
+				 * @return true if pattern id has no match in the input so far,
+				 *         false if it has or this Scanner cannot tell
+				 */
+				boolean ruledOut(int id) {
+					return !gaveUp && handled[id] && !matched[id];
+				}
+			}
+		}
+	}
 	
-	private void clearGlobalVariables() {
-		isSuccess = false;
-		match = null;
-		before = null;
+	/**
+	 * The match buffer: a CharSequence over a circular char array, so that
+	 * consuming a match from the front does not move the rest. Grows as
+	 * needed up to max chars (if max is not 0), after that the oldest chars
+	 * are dropped to make room for new ones.
+	 */
+	static final class CharRing implements CharSequence {
+		private char[] data = new char[16];		// length is a power of 2
+		private int head = 0, length = 0;
+		/** absolute offsets of the '\n's found by indexLines(), in order */
+		private long[] newlines = new long[16];	// length is a power of 2
+		private int newlineHead = 0, newlineCount = 0;
+		/** absolute offset up to which newlines have been indexed */
+		private long indexedTo = 0;
+		/** absolute offset of charAt(0): chars consumed or dropped so far */
+		private long base = 0;
+		private int max = 0;
+		private Appendable spill;
+		private long discarded = 0;
+		
+		@Override
+		public int length() {
+			return length;
+		}
+		
+		@Override
+		public char charAt(int index) {
+			if (index < 0 || index >= length)
+				throw new IndexOutOfBoundsException("index: " + index);
+			return data[(head + index) & (data.length - 1)];
+		}
+		
+		@Override
+		public CharSequence subSequence(int start, int end) {
+			return substring(start, end);
+		}
+		
+		public String substring(int start, int end) {
+			if (start < 0 || end > length || start > end)
+				throw new IndexOutOfBoundsException(start + ", " + end);
+			int from = (head + start) & (data.length - 1);
+			if (from + end - start <= data.length)
+				return new String(data, from, end - start);
+			char[] copy = new char[end - start];
+			int first = data.length - from;
+			System.arraycopy(data, from, copy, 0, first);
+			System.arraycopy(data, 0, copy, first, copy.length - first);
+			return new String(copy);
+		}
+		
+		@Override
+		public String toString() {
+			return substring(0, length);
+		}
+		
+		long base() {
+			return base;
+		}
+		
+		/**
+		 * Adds the '\n's appended since the last call to the index, and
+		 * forgets those consumed or dropped since.
+		 * 
+		 * @return how many '\n's the buffer holds
+		 */
+		int indexLines() {
+			while (newlineCount > 0 && newline(0) < base) {
+				newlineHead = (newlineHead + 1) & (newlines.length - 1);
+				newlineCount--;
+			}
+			long end = base + length;
+			for (long p = Math.max(indexedTo, base); p < end; p++) {
+				if (data[(int) ((head + p - base) & (data.length - 1))] != '\n')
+					continue;
+				if (newlineCount == newlines.length) {
+					long[] bigger = new long[newlines.length * 2];
+					for (int k = 0; k < newlineCount; k++)
+						bigger[k] = newline(k);
+					newlines = bigger;
+					newlineHead = 0;
+				}
+				newlines[(newlineHead + newlineCount++) & (newlines.length - 1)] = p;
+			}
+			indexedTo = end;
+			return newlineCount;
+		}
+		
+		/** @return absolute offset of the k-th indexed '\n' */
+		long newline(int k) {
+			return newlines[(newlineHead + k) & (newlines.length - 1)];
+		}
+		
+		/** @return index of the first indexed '\n' at offset from or later */
+		int newlineIndexFrom(long from) {
+			int lo = 0, hi = newlineCount;
+			while (lo < hi) {
+				int mid = (lo + hi) >>> 1;
+				if (newline(mid) < from)
+					lo = mid + 1;
+				else
+					hi = mid;
+			}
+			return lo;
+		}
+		
+		void append(char[] src, int off, int n) {
+			if (max > 0 && length + n > max) {
+				int overflow = length + n - max;
+				int k = Math.min(overflow, length);
+				drop(k);
+				if (overflow > k) {		// more than max chars arrived at once
+					discard(src, off, overflow - k);
+					off += overflow - k;
+					n -= overflow - k;
+				}
+			}
+			if (length + n > data.length)
+				grow(length + n);
+			int tail = (head + length) & (data.length - 1);
+			int first = Math.min(n, data.length - tail);
+			System.arraycopy(src, off, data, tail, first);
+			System.arraycopy(src, off + first, data, 0, n - first);
+			length += n;
+		}
+		
+		/** removes the first n chars, as they have been matched */
+		void consume(int n) {
+			head = (head + n) & (data.length - 1);
+			length -= n;
+			base += n;
+		}
+		
+		/** removes the first n chars, as there is no room for them */
+		private void drop(int n) {
+			int first = Math.min(n, data.length - head);
+			discard(data, head, first);
+			discard(data, 0, n - first);
+			consume(n);
+		}
+		
+		private void discard(char[] src, int off, int n) {
+			if (n == 0)
+				return;
+			discarded += n;
+			if (spill == null)
+				return;
+			try {
+				spill.append(CharBuffer.wrap(src, off, n));
+			} catch (IOException e) {
+				defaultLog.warn("Exception when spilling chars dropped from buffer", e);
+			}
+		}
+		
+		private void grow(int needed) {
+			int capacity = Integer.highestOneBit(needed - 1) << 1;
+			char[] bigger = new char[capacity];
+			int first = Math.min(length, data.length - head);
+			System.arraycopy(data, head, bigger, 0, first);
+			System.arraycopy(data, 0, bigger, first, length - first);
+			data = bigger;
+			head = 0;
+		}
+		
+		void setMax(int max) {
+			this.max = max;
+			if (max > 0 && length > max)
+				drop(length - max);
+		}
+		int getMax() {
+			return max;
+		}
+		void setSpill(Appendable spill) {
+			this.spill = spill;
+		}
+		long getDiscarded() {
+			return discarded;
+		}
 	}
 	
 	/**
-	 * The OutputStream passed to Expect constructor is closed; the InputStream
-	 * is not closed (there is no need to close the InputStream).<br>
-	 * It is suggested that this method be called after the InputStream has come
-	 * to EOF. For example, when you connect through SSH, send an "exit" command
-	 * first, and then call this method.<br>
-	 * <br>
-	 * 
-	 * When this method is called, the thread which write to the sink of the
-	 * pipe will end.
+	 * Where the JDK Flight Recorder events go. The events are recorded by
+	 * ExpectJfrEvents, which is loaded by name if the jdk.jfr module is
+	 * there; without it (or without that class) this does nothing, and
+	 * nothing here refers to a jdk.jfr type, so Expect compiles and runs
+	 * all the same. The begin methods return null when the event is not
+	 * being recorded.
 	 */
-	public void close() {
-		try {
-			this.output.close();
-		} catch (IOException e) {
-			log.warn("Exception when closing OutputStream", e);
-			//e.printStackTrace();
+	static class Events {
+		static final Events CURRENT = load();
+		
+		private static Events load() {
+			try {
+				Class.forName("jdk.jfr.Event");
+				return (Events) Class.forName("ExpectJfrEvents")
+						.getDeclaredConstructor().newInstance();
+			} catch (ReflectiveOperationException e) {
+				return new Events();
+			} catch (LinkageError e) {
+				return new Events();
+			}
 		}
-		try {
-			this.inputChannel.close();
-		} catch (IOException e) {
-			log.warn("Exception when closing input Channel", e);
-			//e.printStackTrace();
+		
+		Object beginExpect() {
+			return null;
+		}
+		void endExpect(Object event, PatternSet patterns, long timeoutNanos,
+				int outcome, ExpectTiming timing) {
+		}
+		Object beginSend() {
+			return null;
+		}
+		void endSend(Object event, long bytes, long flushStart) {
+		}
+		Object beginPumpRead() {
+			return null;
+		}
+		void endPumpRead(Object event, int bytes) {
 		}
 	}
 	
-	public int getDefault_timeout() {
-		return default_timeout;
-	}
-	public void setDefault_timeout(int default_timeout) {
-		this.default_timeout = default_timeout;
-	}
-	public boolean isRestart_timeout_upon_receive() {
-		return restart_timeout_upon_receive;
+	/** how the time of one expect() call went, for its event */
+	static final class ExpectTiming {
+		long bytesRead, charsScanned, matchNanos, waitNanos;
+		
+		/** adds the time since start to matchNanos, @return now */
+		long matched(long start) {
+			long now = System.nanoTime();
+			matchNanos += now - start;
+			return now;
+		}
+		
+		/** adds the time since start to waitNanos, @return now */
+		long waited(long start, int bytes) {
+			long now = System.nanoTime();
+			waitNanos += now - start;
+			if (bytes > 0)
+				bytesRead += bytes;
+			return now;
+		}
 	}
-	public void setRestart_timeout_upon_receive(boolean restart_timeout_upon_receive) {
-		this.restart_timeout_upon_receive = restart_timeout_upon_receive;
+	
+	@SuppressWarnings("serial")
+	public static class TimeoutException extends Exception{
 	}
-	public void setNotransfer(boolean notransfer) {
-		this.notransfer = notransfer;
+	@SuppressWarnings("serial")
+	public static class EOFException extends Exception{
 	}
-	public boolean isNotransfer() {
-		return notransfer;
+	
+	public static enum LogLevel {
+		TRACE, DEBUG, INFO, WARN, ERROR, FATAL
 	}
-
+	
 	/**
-	 * Static method used for convert byte array to string, each byte is
-	 * converted to an ASCII character, if the byte represents a control
-	 * character, it is replaced by a printable caret notation <a
-	 * href="http://en.wikipedia.org/wiki/ASCII">
-	 * http://en.wikipedia.org/wiki/ASCII </a>, or an escape code if possible.
-	 * 
-	 * @param bytes
-	 *            bytes to be printed
-	 * @return String representation of the byte array
+	 * Where an Expect object sends its log messages. Implement
+	 * {@link #isEnabled(LogLevel)} and {@link #log(LogLevel, String, Throwable)};
+	 * messages are only built, and log() only called, for enabled levels, so
+	 * a disabled Log costs a virtual call per message and nothing else.
+	 * {@link #OFF} is the default.
 	 */
-	public static String bytesToPrintableString(byte[] bytes) {
-		StringBuilder sb = new StringBuilder();
-		for (byte b : bytes)
-			sb.append(byteToPrintableString(b));
-		return sb.toString();
+	public static abstract class Log {
+		/** discards everything */
+		public static final Log OFF = new Log() {
+			@Override
+			public boolean isEnabled(LogLevel level) {
+				return false;
+			}
+			@Override
+			public void log(LogLevel level, String message, Throwable t) {
+			}
+		};
+		
+		public abstract boolean isEnabled(LogLevel level);
+		/** @param t may be null */
+		public abstract void log(LogLevel level, String message, Throwable t);
+		
+		public final void trace(String message) {
+			if (isEnabled(LogLevel.TRACE))
+				log(LogLevel.TRACE, message, null);
+		}
+		public final void debug(String message) {
+			if (isEnabled(LogLevel.DEBUG))
+				log(LogLevel.DEBUG, message, null);
+		}
+		public final void debug(String message, Throwable t) {
+			if (isEnabled(LogLevel.DEBUG))
+				log(LogLevel.DEBUG, message, t);
+		}
+		public final void info(String message) {
+			if (isEnabled(LogLevel.INFO))
+				log(LogLevel.INFO, message, null);
+		}
+		public final void warn(String message, Throwable t) {
+			if (isEnabled(LogLevel.WARN))
+				log(LogLevel.WARN, message, t);
+		}
+		public final void warn(String message) {
+			warn(message, null);
+		}
+		public final void error(String message, Throwable t) {
+			if (isEnabled(LogLevel.ERROR))
+				log(LogLevel.ERROR, message, t);
+		}
+		public final void fatal(String message, Throwable t) {
+			if (isEnabled(LogLevel.FATAL))
+				log(LogLevel.FATAL, message, t);
+		}
 	}
-	public static String byteToPrintableString(byte b) {
-		String s = new String(new byte[] { b });
-		// control characters
-		if (b >= 0 && b < 32) s = "^" + (char) (b + 64);
-		else if (b == 127) s = "^?";
-		// some escape characters
-		if (b == 9) s = "\\t";
-		if (b == 10) s = "\\n";
-		if (b == 13) s = "\\r";
-		return s;
+	
+	/**
+	 * A {@link Log} writing to a log4j Logger, as used by
+	 * {@link #addLogToConsole(Level)} and {@link #addLogToFile(String, Level)}.
+	 */
+	public static class Log4jLog extends Log {
+		private static final Level[] LEVELS = { Level.TRACE, Level.DEBUG,
+				Level.INFO, Level.WARN, Level.ERROR, Level.FATAL };
+		private final Logger logger;
+		
+		public Log4jLog(Logger logger) {
+			this.logger = logger;
+		}
+		public Logger getLogger() {
+			return logger;
+		}
+		@Override
+		public boolean isEnabled(LogLevel level) {
+			return logger.isEnabledFor(LEVELS[level.ordinal()]);
+		}
+		@Override
+		public void log(LogLevel level, String message, Throwable t) {
+			logger.log(LEVELS[level.ordinal()], message, t);
+		}
 	}
 	
-	@SuppressWarnings("serial")
-	public static class TimeoutException extends Exception{
+	/** @return the Log of this object */
+	public Log getLog() {
+		return log;
 	}
-	@SuppressWarnings("serial")
-	public static class EOFException extends Exception{
+	/** @param log where this object logs to, {@link Log#OFF} for nowhere */
+	public void setLog(Log log) {
+		this.log = log;
+		if (pump != null)
+			pump.log = log;
+	}
+	/** @return the Log that Expect objects are created with */
+	public static Log getDefaultLog() {
+		return defaultLog;
+	}
+	/**
+	 * Sets the Log that Expect objects created from now on use (and that
+	 * static methods log to).
+	 */
+	public static void setDefaultLog(Log log) {
+		defaultLog = log;
 	}
 	
 	private static Layout layout = new PatternLayout(
 			PatternLayout.TTCC_CONVERSION_PATTERN);
+	private static Log4jLog log4j;
+	
+	/** the log4j Logger of the adapter, created (turned off) on first use */
+	private static synchronized Logger log4jLogger() {
+		if (log4j == null) {
+			Logger logger = Logger.getLogger(Expect.class);
+			logger.setLevel(Level.OFF);
+			log4j = new Log4jLog(logger);
+		}
+		return log4j.getLogger();
+	}
+
+	/**
+	 * Lets the Logger pass level and above, and nothing below what some
+	 * appender wants, so that {@link Log#isEnabled(LogLevel)} keeps saying
+	 * false for messages no appender would write.
+	 */
+	private static void lowerLevel(Logger log, Level level) {
+		if (log.getLevel() == null || log.getLevel().isGreaterOrEqual(level))
+			log.setLevel(level);
+	}
 
+	/**
+	 * Logs to the console through log4j. Affects Expect objects created
+	 * afterwards, see {@link #setDefaultLog(Log)}.
+	 */
 	public static void addLogToConsole(Level level) {
-		log.setLevel(Level.ALL);
+		Logger log = log4jLogger();
+		lowerLevel(log, level);
 		ConsoleAppender console = new ConsoleAppender(layout);
 		console.setThreshold(level);
 		log.addAppender(console);
+		setDefaultLog(log4j);
 	}
 	public static void addLogToFile(String filename, Level level) throws IOException {
-		log.setLevel(Level.ALL);
+		Logger log = log4jLogger();
+		lowerLevel(log, level);
 		FileAppender file = new FileAppender(layout, filename);
 		file.setThreshold(level);
 		log.addAppender(file);
+		setDefaultLog(log4j);
 	}
 	public static void turnOffLogging(){
+		Logger log = log4jLogger();
 		log.setLevel(Level.OFF);
 		log.removeAllAppenders();
+		setDefaultLog(Log.OFF);
+	}
+	
+	private volatile Transcript transcript;
+	
+	/**
+	 * Copies everything this object reads from its input, as raw bytes, to a
+	 * {@link Transcript}. The Transcript is not closed by {@link #close()}.
+	 * Input from an InputStream (or a channel that is not selectable) is
+	 * copied as the piping task reads it, so output that is never expected
+	 * is in the transcript too; a selectable channel is only read, and
+	 * copied, by the calls that wait for input.
+	 * 
+	 * @param transcript null to stop copying
+	 */
+	public void setTranscript(Transcript transcript) {
+		this.transcript = transcript;
+		if (pump != null)
+			pump.transcript = transcript;
+	}
+	public Transcript getTranscript() {
+		return transcript;
+	}
+	
+	/**
+	 * Writes chunks of bytes to an OutputStream on a background task, so a
+	 * slow stream (a console, a file on a busy disk) does not hold up the
+	 * thread handing the chunks over. Chunks wait in a lock-free queue of at
+	 * most capacity bytes; what happens to a chunk that does not fit is up to
+	 * the {@link Overflow} policy, and dropped bytes are counted.
+	 */
+	public static final class Transcript implements Closeable {
+		public static enum Overflow {
+			/** drop the chunk that does not fit */
+			DROP_NEWEST,
+			/** drop queued chunks until the new one fits */
+			DROP_OLDEST,
+			/** wait until the writer makes room: back-pressure on the input */
+			BLOCK
+		}
+		
+		private final OutputStream out;
+		private final int capacity;
+		private final Overflow overflow;
+		private final Executor executor;
+		private final Queue<byte[]> queue = new ConcurrentLinkedQueue<byte[]>();
+		private final AtomicLong queued = new AtomicLong();
+		private final AtomicLong dropped = new AtomicLong();
+		/** whether a writing task is on (or queued to) the executor */
+		private final AtomicBoolean writing = new AtomicBoolean();
+		private volatile boolean closed = false;
+		
+		private final Runnable writer = new Runnable() {
+			@Override
+			public void run() {
+				do {
+					try {
+						byte[] chunk;
+						while ((chunk = queue.poll()) != null) {
+							queued.addAndGet(-chunk.length);
+							out.write(chunk);
+						}
+						out.flush();
+					} catch (IOException e) {
+						defaultLog.warn("Exception when writing transcript", e);
+					}
+					writing.set(false);
+					synchronized (Transcript.this) {
+						Transcript.this.notifyAll();	// for close()
+					}
+					// a chunk offered after the last poll() may have seen
+					// writing still set
+				} while (!queue.isEmpty() && writing.compareAndSet(false, true));
+			}
+		};
+		
+		/**
+		 * A transcript to out, queueing up to 1 MB and dropping what does not
+		 * fit, written on the transcripts' own daemon threads.
+		 */
+		public Transcript(OutputStream out) {
+			this(out, 1 << 20, Overflow.DROP_NEWEST, null);
+		}
+		
+		/**
+		 * @param capacity
+		 *            bytes waiting to be written at most
+		 * @param executor
+		 *            runs the writing, null for a pool of daemon threads
+		 *            shared by the transcripts only. Not the executor of the
+		 *            pumps if it is bounded: with {@link Overflow#BLOCK}, a
+		 *            stalled out would hold up the pump feeding this
+		 *            transcript, waiting for a writer that cannot run
+		 */
+		public Transcript(OutputStream out, int capacity, Overflow overflow,
+				Executor executor) {
+			this.out = out;
+			this.capacity = capacity;
+			this.overflow = overflow;
+			this.executor = executor != null ? executor : defaultExecutor();
+		}
+		
+		private static Executor defaultExecutor;
+		
+		private static synchronized Executor defaultExecutor() {
+			if (defaultExecutor == null)
+				defaultExecutor = newDaemonThreadPool("Expect transcript writer");
+			return defaultExecutor;
+		}
+		
+		/**
+		 * Queues a chunk for writing; the array must not be modified
+		 * afterwards. A chunk larger than capacity is only taken when the
+		 * queue is empty.
+		 */
+		public void offer(byte[] chunk) {
+			if (closed || !reserve(chunk.length)) {
+				dropped.addAndGet(chunk.length);
+				return;
+			}
+			queue.add(chunk);
+			if (writing.compareAndSet(false, true))
+				executor.execute(writer);
+		}
+		
+		/** @return whether there is room for n more bytes now */
+		private boolean reserve(int n) {
+			while (true) {
+				long q = queued.get();
+				if (q == 0 || q + n <= capacity) {
+					if (queued.compareAndSet(q, q + n))
+						return true;
+					continue;
+				}
+				switch (overflow) {
+				case DROP_NEWEST:
+					return false;
+				case DROP_OLDEST:
+					byte[] old = queue.poll();
+					if (old != null) {
+						queued.addAndGet(-old.length);
+						dropped.addAndGet(old.length);
+					}
+					break;
+				case BLOCK:
+					if (closed)
+						return false;
+					LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+					break;
+				}
+			}
+		}
+		
+		/** @return number of bytes dropped so far for lack of room */
+		public long getDropped() {
+			return dropped.get();
+		}
+		
+		/** @return number of bytes waiting to be written */
+		public long getQueued() {
+			return queued.get();
+		}
+		
+		/**
+		 * Stops taking chunks, waits for the queued ones to be written, and
+		 * closes the OutputStream.
+		 */
+		@Override
+		public void close() throws IOException {
+			closed = true;
+			synchronized (this) {
+				while (!queue.isEmpty() || writing.get()) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new InterruptedIOException(
+								"interrupted while writing the transcript");
+					}
+				}
+			}
+			out.close();
+		}
 	}
 	
 	private static PrintStream duplicatedTo = null;
@@ -523,7 +4353,7 @@ public class Expect {
 	 * System.err or System.out). <b>DO NOT</b> call this function while there
 	 * are live Expect objects as this may cause the piping thread to end due to
 	 * unsynchronized code; if you need this feature, add the following to both
-	 * {@link #inputStreamToSelectableChannel(InputStream)} and
+	 * {@link #inputStreamToSelectableChannel(InputStream, Executor)} and
 	 * {@link #forwardInputStreamTo(PrintStream)}:
 	 * <pre>
 	 * {@code
@@ -531,7 +4361,10 @@ public class Expect {
 	 * </pre>
 	 * @param duplicatedTo
 	 *            call with null if you want to turn off
+	 * @deprecated affects all Expect objects, and a slow stream holds up the
+	 *             input; use {@link #setTranscript(Transcript)}
 	 */
+	@Deprecated
 	public static void forwardInputStreamTo(PrintStream duplicatedTo) {
 		Expect.duplicatedTo = duplicatedTo;
 	}
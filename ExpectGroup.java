@@ -0,0 +1,228 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Expects on many {@link Expect} sessions at once, like
+ * {@code expect -i $spawn_list} in Tcl Expect. The input channels of all
+ * sessions in the group are registered with one Selector, so a single
+ * thread can wait for "any of these patterns on any of these sessions".<br>
+ * <br>
+ * An ExpectGroup is not thread-safe, and while a group is expecting, the
+ * Expect objects in it must not be used by another thread.
+ * 
+ * <pre>
+ * {@code
+ * ExpectGroup group = new ExpectGroup();
+ * for (Expect host : hosts)
+ * 	group.add(host);
+ * Expect.MatchResult r = group.expect(30, "$ ", "Password:");
+ * if (r.isSuccess())
+ * 	r.expect.send(r.index == 0 ? "uptime\n" : PASSWD + "\n");
+ * }
+ * </pre>
+ */
+public class ExpectGroup {
+	private final List<Expect> sessions = new ArrayList<Expect>();
+	/** keys of the sessions registered with the selector so far */
+	private final Map<Expect, SelectionKey> keys =
+			new IdentityHashMap<Expect, SelectionKey>();
+	/** opened on first use */
+	private Selector selector;
+	private int default_timeout = 60;
+	private Expect.Log log = Expect.getDefaultLog();
+	
+	/**
+	 * Adds a session to the group. Its input is not read by the group until
+	 * the next expect() call.
+	 */
+	public void add(Expect expect) {
+		if (!sessions.contains(expect))
+			sessions.add(expect);
+	}
+	
+	/**
+	 * Removes a session from the group, e.g. after it came to EOF. Data not
+	 * matched yet stays in the session's buffer.
+	 */
+	public void remove(Expect expect) {
+		sessions.remove(expect);
+		SelectionKey key = keys.remove(expect);
+		if (key == null)
+			return;
+		key.cancel();
+		try {
+			// deregisters the channel, so that it can be added again
+			selector.selectNow();
+			selector.selectedKeys().clear();
+		} catch (IOException e) {
+			log.warn("Exception when deregistering a session", e);
+		}
+	}
+	
+	/** @return the sessions in the group, in the order they were added */
+	public List<Expect> getSessions() {
+		return new ArrayList<Expect>(sessions);
+	}
+	
+	/**
+	 * Convenience method, same as calling
+	 * {@link #expect(int, Expect.PatternSet) expect(default_timeout, patterns)}
+	 */
+	public Expect.MatchResult expect(Expect.PatternSet patterns) {
+		return expect(default_timeout, patterns);
+	}
+	
+	/**
+	 * Convenience method, same as calling
+	 * {@link #expect(int, Expect.PatternSet) expect(timeout,
+	 * Expect.PatternSet.cached(patterns))}
+	 */
+	public Expect.MatchResult expect(int timeout, Object... patterns) {
+		return expect(timeout, Expect.PatternSet.cached(patterns));
+	}
+	
+	/**
+	 * Waits until one of the sessions produces one of the patterns, the
+	 * same way {@link Expect#expect(int, Expect.PatternSet)} does for one
+	 * session. The session that matched has its {@link Expect#before} and
+	 * {@link Expect#match} set, the buffers of the others are left as they
+	 * are. If several sessions already hold a match, the one added first
+	 * wins.<br>
+	 * A session that comes to EOF ends the wait with
+	 * {@link Expect#RETV_EOF}; remove it from the group (and call
+	 * {@link Expect#expectEOF(int)} on it for the rest of its output)
+	 * before expecting again.<br>
+	 * Input received by a session with
+	 * {@link Expect#setRestart_timeout_upon_receive(boolean)
+	 * restart_timeout_upon_receive} set starts the timeout again.
+	 * 
+	 * @param timeout
+	 *            timeout in seconds
+	 * @return the session and the position of the matched pattern; or a
+	 *         result with a negative index on timeout (then without a
+	 *         session), EOF or IOException
+	 */
+	public Expect.MatchResult expect(int timeout, Expect.PatternSet patterns) {
+		if (log.isEnabled(Expect.LogLevel.DEBUG))
+			log.debug("Expecting " + patterns + " on " + sessions.size()
+					+ " sessions");
+		Expect.Deadline deadline = new Expect.Deadline(
+				TimeUnit.SECONDS.toNanos(timeout));
+		
+		Map<Expect, Expect.Scan> scans = new IdentityHashMap<Expect, Expect.Scan>();
+		for (Expect expect : sessions) {
+			expect.clearGlobalVariables();
+			scans.put(expect, expect.new Scan(patterns));
+		}
+		Expect current = null;
+		try {
+			for (Expect expect : sessions) {
+				current = expect;
+				Expect.Scan scan = scans.get(expect);
+				int i = match(scan, deadline);
+				if (i >= 0)
+					return new Expect.MatchResult(expect, i);
+				if (scan.overBudget)
+					return new Expect.MatchResult(null, Expect.RETV_TIMEOUT);
+			}
+			Selector selector = selector();
+			while (true) {
+				if (!deadline.await(selector)) {
+					if (log.isEnabled(Expect.LogLevel.DEBUG))
+						log.debug("Timeout when expecting " + patterns);
+					return new Expect.MatchResult(null, Expect.RETV_TIMEOUT);
+				}
+				try {
+					Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+					while (it.hasNext()) {
+						current = (Expect) it.next().attachment();
+						it.remove();
+						if (current.readInput() == -1) {
+							if (log.isEnabled(Expect.LogLevel.DEBUG))
+								log.debug("EOF when expecting " + patterns);
+							return new Expect.MatchResult(current, Expect.RETV_EOF);
+						}
+						if (current.isRestart_timeout_upon_receive())
+							deadline.restart();
+						Expect.Scan scan = scans.get(current);
+						int i = match(scan, deadline);
+						if (i >= 0)
+							return new Expect.MatchResult(current, i);
+						if (scan.overBudget)
+							return new Expect.MatchResult(null, Expect.RETV_TIMEOUT);
+					}
+				} finally {
+					// the others are selected again next time
+					selector.selectedKeys().clear();
+				}
+			}
+		} catch (IOException e) {
+			log.error("IOException when selecting or reading", e);
+			if (current != null)
+				current.thrownIOE = e;
+			return new Expect.MatchResult(current, Expect.RETV_IOEXCEPTION);
+		} finally {
+			deadline.cancel();
+		}
+	}
+	
+	/**
+	 * Matches one session's buffer, with the regex budget ending with the
+	 * deadline (which may have been restarted), as in
+	 * {@link Expect#expect(int, Expect.PatternSet)}.
+	 * 
+	 * @return index of the matched pattern, or -1 (then see overBudget)
+	 */
+	private static int match(Expect.Scan scan, Expect.Deadline deadline) {
+		if (deadline.armed())
+			scan.budget(deadline.end);
+		return scan.match();
+	}
+	
+	/**
+	 * @return the group's Selector, with every session registered
+	 */
+	private Selector selector() throws IOException {
+		if (selector == null)
+			selector = Selector.open();
+		for (Expect expect : sessions)
+			if (!keys.containsKey(expect))
+				keys.put(expect, expect.getInputChannel().register(selector,
+						SelectionKey.OP_READ, expect));
+		return selector;
+	}
+	
+	/**
+	 * Closes the group's Selector. The sessions are not closed.
+	 */
+	public void close() {
+		keys.clear();
+		try {
+			if (selector != null)
+				selector.close();
+		} catch (IOException e) {
+			log.warn("Exception when closing Selector", e);
+		}
+		selector = null;
+	}
+	
+	public int getDefault_timeout() {
+		return default_timeout;
+	}
+	public void setDefault_timeout(int default_timeout) {
+		this.default_timeout = default_timeout;
+	}
+	public Expect.Log getLog() {
+		return log;
+	}
+	public void setLog(Expect.Log log) {
+		this.log = log;
+	}
+}
@@ -0,0 +1,143 @@
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * The {@link Expect.Events} recorded by the JDK Flight Recorder. This is
+ * the only class that refers to jdk.jfr, and it is optional: Expect loads
+ * it by name if jdk.jfr is there, and goes without events if it is not
+ * (or if this class was not compiled along). An event object is only
+ * created while a recording has its type enabled.
+ */
+final class ExpectJfrEvents extends Expect.Events {
+	private final EventType expectType = EventType.getEventType(ExpectEvent.class);
+	private final EventType sendType = EventType.getEventType(SendEvent.class);
+	private final EventType pumpReadType = EventType.getEventType(PumpReadEvent.class);
+
+	@Override
+	Object beginExpect() {
+		if (!expectType.isEnabled())
+			return null;
+		ExpectEvent event = new ExpectEvent();
+		event.begin();
+		return event;
+	}
+
+	@Override
+	void endExpect(Object e, Expect.PatternSet patterns, long timeoutNanos,
+			int outcome, Expect.ExpectTiming timing) {
+		ExpectEvent event = (ExpectEvent) e;
+		if (!event.shouldCommit())
+			return;
+		event.patterns = patterns.toString();
+		event.timeout = timeoutNanos;
+		event.outcome = outcome;
+		event.bytesRead = timing.bytesRead;
+		event.charsScanned = timing.charsScanned;
+		event.matchTime = timing.matchNanos;
+		event.waitTime = timing.waitNanos;
+		event.commit();
+	}
+
+	@Override
+	Object beginSend() {
+		if (!sendType.isEnabled())
+			return null;
+		SendEvent event = new SendEvent();
+		event.begin();
+		return event;
+	}
+
+	@Override
+	void endSend(Object e, long bytes, long flushStart) {
+		SendEvent event = (SendEvent) e;
+		if (!event.shouldCommit())
+			return;
+		event.bytes = bytes;
+		event.flushTime = System.nanoTime() - flushStart;
+		event.commit();
+	}
+
+	@Override
+	Object beginPumpRead() {
+		if (!pumpReadType.isEnabled())
+			return null;
+		PumpReadEvent event = new PumpReadEvent();
+		event.begin();
+		return event;
+	}
+
+	@Override
+	void endPumpRead(Object e, int bytes) {
+		PumpReadEvent event = (PumpReadEvent) e;
+		if (!event.shouldCommit())
+			return;
+		event.bytes = bytes;
+		event.commit();
+	}
+
+	/** JFR event for a blocking expect() or expectLine() call */
+	@Name("Expect.Expect")
+	@Label("Expect")
+	@Category("Expect")
+	@StackTrace(false)
+	static final class ExpectEvent extends Event {
+		@Label("Patterns")
+		String patterns;
+		@Label("Timeout")
+		@Timespan(Timespan.NANOSECONDS)
+		long timeout;
+		@Label("Outcome")
+		@Description("Index of the matched pattern, or one of the RETV_ constants")
+		int outcome;
+		@Label("Bytes Read")
+		@DataAmount
+		long bytesRead;
+		@Label("Chars Scanned")
+		@Description("Chars handed to the matchers, the same char counting once per pattern that looked at it")
+		long charsScanned;
+		@Label("Match Time")
+		@Description("Time spent trying the patterns")
+		@Timespan(Timespan.NANOSECONDS)
+		long matchTime;
+		@Label("Wait Time")
+		@Description("Time spent waiting for and reading input")
+		@Timespan(Timespan.NANOSECONDS)
+		long waitTime;
+	}
+
+	/** JFR event for a send() or flush() */
+	@Name("Expect.Send")
+	@Label("Expect Send")
+	@Category("Expect")
+	@StackTrace(false)
+	static final class SendEvent extends Event {
+		@Label("Bytes")
+		@DataAmount
+		long bytes;
+		@Label("Flush Time")
+		@Timespan(Timespan.NANOSECONDS)
+		long flushTime;
+	}
+
+	/**
+	 * JFR event for a read by the task piping an InputStream into an
+	 * Expect object; its duration is the time the read blocked.
+	 */
+	@Name("Expect.PumpRead")
+	@Label("Expect Pump Read")
+	@Category("Expect")
+	@StackTrace(false)
+	static final class PumpReadEvent extends Event {
+		@Label("Bytes")
+		@Description("Bytes read, -1 at EOF")
+		@DataAmount
+		int bytes;
+	}
+}
@@ -0,0 +1,363 @@
+import java.io.Closeable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a number of {@link Expect} sessions spawned and warmed up (e.g. a
+ * shell already past its first prompt), and leases them out, so that short
+ * jobs do not pay for starting a process each time.<br>
+ * <br>
+ * Sessions come from a {@link Factory}. When a session is released, a
+ * {@link Validator} brings it back to a known state (or finds it broken);
+ * sessions that fail it, and sessions whose process has died (or, without
+ * a process, whose input has ended), are closed and replaced in the
+ * background.
+ *
+ * <pre>
+ * {@code
+ * ExpectPool pool = new ExpectPool(new ExpectPool.Factory() {
+ * 	public Expect create() {
+ * 		Expect e = Expect.spawn("bash -i");
+ * 		return e != null && e.expect(10, "$ ") == 0 ? e : null;
+ * 	}
+ * }, ExpectPool.resetBySending("cd\n", Expect.PatternSet.of("$ "), 5), 4);
+ * Expect session = pool.lease(30, TimeUnit.SECONDS);
+ * try {
+ * 	session.send("make\n");
+ * 	...
+ * } finally {
+ * 	pool.release(session);
+ * }
+ * }
+ * </pre>
+ */
+public class ExpectPool implements Closeable {
+
+	/** spawns a session and warms it up */
+	public interface Factory {
+		/** @return the new session, or null if it could not be created */
+		Expect create();
+	}
+
+	/** checks a released session, see {@link ExpectPool#release(Expect)} */
+	public interface Validator {
+		/**
+		 * Resets the session for its next user, e.g. by sending a command
+		 * and expecting the prompt.
+		 *
+		 * @return false if the session is broken and has to be evicted
+		 */
+		boolean reset(Expect session);
+	}
+
+	/**
+	 * @return a Validator sending command and expecting prompt within
+	 *         timeout seconds
+	 */
+	public static Validator resetBySending(final String command,
+			final Expect.PatternSet prompt, final int timeout) {
+		return new Validator() {
+			@Override
+			public boolean reset(Expect session) {
+				session.send(command);
+				return session.expect(timeout, prompt) >= 0;
+			}
+		};
+	}
+
+	private final Factory factory;
+	private final Validator validator;
+	private final int size;
+	private final Executor executor;
+
+	private final ArrayDeque<Expect> idle = new ArrayDeque<Expect>();
+	private final Set<Expect> leased =
+			Collections.newSetFromMap(new IdentityHashMap<Expect, Boolean>());
+	/** idle, leased, and being created */
+	private int total = 0;
+	private boolean closed = false;
+
+	private long hits = 0, misses = 0, evictions = 0, failures = 0;
+	private long waitNanos = 0, maxWaitNanos = 0;
+
+	/**
+	 * Creates a pool and starts warming up size sessions in the background,
+	 * on daemon threads shared by the pools.
+	 *
+	 * @param validator
+	 *            run on each released session, null to only check that its
+	 *            process is alive
+	 */
+	public ExpectPool(Factory factory, Validator validator, int size) {
+		this(factory, validator, size, null);
+	}
+
+	/**
+	 * @param executor
+	 *            runs the creation of sessions, null for daemon threads
+	 *            shared by the pools. A Factory blocks in expect() until the
+	 *            session's pump has read its prompt, so this must not be a
+	 *            bounded executor that also runs the pumps: size warm-ups
+	 *            could take all its threads and wait for pumps that never
+	 *            run
+	 */
+	public ExpectPool(Factory factory, Validator validator, int size,
+			Executor executor) {
+		if (size <= 0)
+			throw new IllegalArgumentException("size must be positive");
+		this.factory = factory;
+		this.validator = validator;
+		this.size = size;
+		this.executor = executor != null ? executor : defaultExecutor();
+		synchronized (this) {
+			replenish();
+		}
+	}
+
+	private static Executor defaultExecutor;
+
+	private static synchronized Executor defaultExecutor() {
+		if (defaultExecutor == null)
+			defaultExecutor = Expect.newDaemonThreadPool("Expect pool warm-up");
+		return defaultExecutor;
+	}
+
+	/** starts creating sessions until there are size of them */
+	private void replenish() {
+		while (!closed && total < size) {
+			total++;
+			executor.execute(new Runnable() {
+				@Override
+				public void run() {
+					Expect session = create();
+					synchronized (ExpectPool.this) {
+						if (session == null) {
+							total--;
+						} else if (closed) {
+							total--;
+						} else {
+							idle.add(session);
+							session = null;
+						}
+						ExpectPool.this.notifyAll();
+					}
+					if (session != null)
+						destroy(session);
+				}
+			});
+		}
+	}
+
+	private Expect create() {
+		Expect session = null;
+		try {
+			session = factory.create();
+		} catch (RuntimeException e) {
+			Expect.getDefaultLog().warn("Exception when creating a session", e);
+		}
+		if (session == null) {
+			synchronized (this) {
+				failures++;
+			}
+		}
+		return session;
+	}
+
+	/**
+	 * Takes a session out of the pool. A warm one is returned at once if
+	 * there is one (a hit); otherwise (a miss) a session is created on this
+	 * thread if the pool is not full, or else the call waits for one to be
+	 * released or warmed up.
+	 *
+	 * @return the session, to be given back with {@link #release(Expect)};
+	 *         null if none was available within the timeout or it could not
+	 *         be created
+	 * @throws IllegalStateException
+	 *             if the pool is closed, or gets closed while waiting
+	 */
+	public Expect lease(long timeout, TimeUnit unit)
+			throws InterruptedException {
+		long start = System.nanoTime();
+		long deadline = start + unit.toNanos(timeout);
+		boolean hit = true;
+		List<Expect> dead = new ArrayList<Expect>();
+		try {
+			synchronized (this) {
+				while (true) {
+					if (closed)
+						throw new IllegalStateException("pool closed");
+					Expect session = idle.poll();
+					if (session != null && !isAlive(session)) {
+						evict();
+						dead.add(session);
+						continue;
+					}
+					if (session != null) {
+						if (hit)
+							hits++;
+						else
+							waited(start);
+						leased.add(session);
+						return session;
+					}
+					if (hit) {
+						hit = false;
+						misses++;
+					}
+					if (total < size) {
+						total++;
+						break;		// create one below, without the lock
+					}
+					long left = deadline - System.nanoTime();
+					if (left <= 0) {
+						waited(start);
+						return null;
+					}
+					TimeUnit.NANOSECONDS.timedWait(this, left);
+				}
+			}
+		} finally {
+			for (Expect session : dead)
+				destroy(session);
+		}
+		Expect session = create();
+		synchronized (this) {
+			waited(start);
+			if (session == null) {
+				total--;
+				notifyAll();
+			} else if (closed) {
+				total--;
+			} else {
+				leased.add(session);
+				return session;
+			}
+		}
+		if (session != null)
+			destroy(session);
+		return null;
+	}
+
+	private void waited(long start) {
+		long nanos = System.nanoTime() - start;
+		waitNanos += nanos;
+		maxWaitNanos = Math.max(maxWaitNanos, nanos);
+	}
+
+	/**
+	 * Gives a leased session back. It is reset by the Validator on this
+	 * thread; if that fails, or its process has died, it is closed and a new
+	 * one is created in the background.
+	 */
+	public void release(Expect session) {
+		synchronized (this) {
+			if (!leased.remove(session))
+				throw new IllegalArgumentException("session not leased from this pool");
+		}
+		boolean ok = isAlive(session);
+		if (ok && validator != null) {
+			try {
+				ok = validator.reset(session) && isAlive(session);
+			} catch (RuntimeException e) {
+				Expect.getDefaultLog().warn("Exception when resetting a session", e);
+				ok = false;
+			}
+		}
+		synchronized (this) {
+			if (ok && !closed) {
+				idle.add(session);
+				notifyAll();
+				return;
+			}
+			evict();
+		}
+		destroy(session);
+	}
+
+	/**
+	 * forgets a session and starts creating its replacement; the caller
+	 * closes the session, after letting go of the lock
+	 */
+	private void evict() {
+		if (!closed)
+			evictions++;
+		total--;
+		replenish();
+		notifyAll();
+	}
+
+	/**
+	 * @return false if the session's process died, or (for sessions without
+	 *         a process) its input came to EOF or it was closed
+	 */
+	private static boolean isAlive(Expect session) {
+		if (session.isInputEnded())
+			return false;
+		Process p = session.getProcess();
+		return p == null || p.isAlive();
+	}
+
+	private static void destroy(Expect session) {
+		session.close();
+		if (session.getProcess() != null)
+			session.getProcess().destroy();
+	}
+
+	/**
+	 * Closes the idle sessions; leased ones are closed when they are
+	 * released.
+	 */
+	@Override
+	public void close() {
+		List<Expect> toClose;
+		synchronized (this) {
+			closed = true;
+			toClose = new ArrayList<Expect>(idle);
+			idle.clear();
+			total -= toClose.size();
+			notifyAll();
+		}
+		for (Expect session : toClose)
+			destroy(session);
+	}
+
+	/** @return leases served at once by a warm session */
+	public synchronized long getHits() {
+		return hits;
+	}
+	/** @return leases that found no warm session */
+	public synchronized long getMisses() {
+		return misses;
+	}
+	/** @return sessions closed for failing the Validator or dying */
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+	/** @return times the Factory failed to create a session */
+	public synchronized long getFailures() {
+		return failures;
+	}
+	/** @return nanoseconds spent by all misses waiting for a session */
+	public synchronized long getWaitNanos() {
+		return waitNanos;
+	}
+	/** @return longest wait of a miss, in nanoseconds */
+	public synchronized long getMaxWaitNanos() {
+		return maxWaitNanos;
+	}
+	public synchronized int getIdle() {
+		return idle.size();
+	}
+	public synchronized int getLeased() {
+		return leased.size();
+	}
+	public int getSize() {
+		return size;
+	}
+}
@@ -0,0 +1,247 @@
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records a session to a file: every chunk an {@link Expect} object reads
+ * from its input and every chunk it sends, each with the time it happened.
+ * Attach it with {@link Expect#setRecorder(ExpectRecorder)}, and feed the
+ * file back with {@link #replay(File, boolean)}, e.g. to run a script
+ * against a recorded session instead of the real program.<br>
+ * <br>
+ * The file is written through a {@link MappedByteBuffer}, a region of
+ * {@link #REGION} bytes at a time, so recording a chunk is a copy into
+ * memory rather than a system call. It is a sequence of records:
+ *
+ * <pre>
+ * byte  type     RECEIVED or SENT (0 ends the recording)
+ * long  time     nanoseconds since the recording started
+ * int   length
+ * byte[length]   the bytes
+ * </pre>
+ *
+ * in big-endian order, after the 8 bytes of {@link #MAGIC}.
+ */
+public class ExpectRecorder implements Closeable {
+	public static final byte RECEIVED = 1, SENT = 2;
+	static final byte[] MAGIC = { 'E', 'X', 'P', 'R', 'E', 'C', '0', '1' };
+	/** size of the part of the file mapped at a time */
+	static final int REGION = 1 << 20;
+	private static final int HEADER = 1 + 8 + 4;
+
+	private final RandomAccessFile file;
+	private final FileChannel channel;
+	private final long start = System.nanoTime();
+	/** the region being written, and the file offset it starts at */
+	private MappedByteBuffer region;
+	private long regionStart = 0;
+	private boolean closed = false;
+
+	/** creates (or truncates) the file and starts recording */
+	public ExpectRecorder(File file) throws IOException {
+		this.file = new RandomAccessFile(file, "rw");
+		try {
+			this.file.setLength(0);
+			this.channel = this.file.getChannel();
+			map(0, REGION);
+		} catch (IOException | RuntimeException e) {
+			try {
+				this.file.close();		// else the descriptor leaks
+			} catch (IOException suppressed) {
+				e.addSuppressed(suppressed);
+			}
+			throw e;
+		}
+		region.put(MAGIC);
+	}
+
+	private void map(long position, int size) throws IOException {
+		if (region != null)
+			region.force();
+		regionStart = position;
+		// mapping beyond the end makes the file longer; the part not
+		// written yet is zeros, which reads as the end of the recording
+		region = channel.map(FileChannel.MapMode.READ_WRITE, position, size);
+	}
+
+	/** records the bytes between src's position and limit as read */
+	public synchronized void received(ByteBuffer src) throws IOException {
+		append(RECEIVED, src);
+	}
+
+	/** records bytes as sent */
+	public synchronized void sent(byte[] b, int off, int len)
+			throws IOException {
+		append(SENT, ByteBuffer.wrap(b, off, len));
+	}
+
+	private void append(byte type, ByteBuffer src) throws IOException {
+		if (closed)
+			throw new IOException("recorder closed");
+		int length = src.remaining();
+		if (region.remaining() < HEADER + length + 1)	// + 1 for the end mark
+			map(regionStart + region.position(),
+					Math.max(REGION, HEADER + length + 1));
+		region.put(type).putLong(System.nanoTime() - start).putInt(length)
+				.put(src);
+	}
+
+	/** @return bytes recorded so far, including headers */
+	public synchronized long size() {
+		return regionStart + region.position();
+	}
+
+	/** writes the recording out and cuts the file to its length */
+	@Override
+	public synchronized void close() throws IOException {
+		if (closed)
+			return;
+		closed = true;
+		long length = regionStart + region.position();
+		region.force();
+		try {
+			channel.truncate(length);
+		} catch (IOException e) {
+			// some platforms refuse to truncate a file that is still
+			// mapped; the trailing zeros read as the end anyway
+		}
+		file.close();
+	}
+
+	/**
+	 * Plays back what a recording received as an InputStream, for
+	 * {@link Expect#Expect(java.io.InputStream, java.io.OutputStream)} (or
+	 * {@link java.nio.channels.Channels#newChannel(InputStream)}). Each
+	 * read() returns at most one recorded chunk, so chunk boundaries are kept;
+	 * what was sent is skipped.
+	 *
+	 * @param originalTiming
+	 *            true to hand out each chunk at the time it was received,
+	 *            relative to the first read(); false for as fast as possible
+	 */
+	public static InputStream replay(File file, boolean originalTiming)
+			throws IOException {
+		return new Replay(file, originalTiming);
+	}
+
+	private static final class Replay extends InputStream {
+		private final RandomAccessFile file;
+		private final FileChannel channel;
+		private final boolean originalTiming;
+		private MappedByteBuffer region;
+		private long regionStart = 0;
+		private long start = -1;
+		/** bytes of the current chunk not read yet */
+		private int left = 0;
+		private boolean eof = false;
+
+		Replay(File f, boolean originalTiming) throws IOException {
+			this.file = new RandomAccessFile(f, "r");
+			this.channel = file.getChannel();
+			this.originalTiming = originalTiming;
+			region = channel.map(FileChannel.MapMode.READ_ONLY, 0,
+					Math.min(REGION, channel.size()));
+			byte[] magic = new byte[MAGIC.length];
+			if (region.remaining() < magic.length)
+				throw new IOException("not a recording: " + f);
+			region.get(magic);
+			if (!Arrays.equals(magic, MAGIC))
+				throw new IOException("not a recording: " + f);
+		}
+
+		/** makes sure the next n bytes of the file are in region */
+		private boolean ensure(int n) throws IOException {
+			if (region.remaining() >= n)
+				return true;
+			long position = regionStart + region.position();
+			if (channel.size() - position < n)
+				return false;
+			regionStart = position;
+			region = channel.map(FileChannel.MapMode.READ_ONLY, position,
+					Math.max(n, Math.min(REGION, channel.size() - position)));
+			return true;
+		}
+
+		/** moves to the next received chunk; false at the end */
+		private boolean next() throws IOException {
+			while (true) {
+				if (!ensure(1))
+					return false;
+				byte type = region.get();
+				if (type == 0)
+					return false;
+				if (!ensure(HEADER - 1))
+					throw new EOFException("truncated recording");
+				long time = region.getLong();
+				int length = region.getInt();
+				if (!ensure(length))
+					throw new EOFException("truncated recording");
+				if (type != RECEIVED) {
+					region.position(region.position() + length);
+					continue;
+				}
+				if (originalTiming)
+					waitUntil(time);
+				left = length;
+				return true;
+			}
+		}
+
+		private void waitUntil(long time) throws IOException {
+			if (start < 0)
+				start = System.nanoTime() - time;
+			long wait;
+			while ((wait = start + time - System.nanoTime()) > 0) {
+				try {
+					TimeUnit.NANOSECONDS.sleep(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException();
+				}
+			}
+		}
+
+		@Override
+		public int read() throws IOException {
+			byte[] b = new byte[1];
+			return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len)
+				throws IOException {
+			if (len == 0)
+				return 0;
+			while (left == 0) {
+				if (eof || !next()) {
+					eof = true;
+					return -1;
+				}
+			}
+			int n = Math.min(len, left);
+			region.get(b, off, n);
+			left -= n;
+			return n;
+		}
+
+		@Override
+		public int available() {
+			return left;
+		}
+
+		@Override
+		public void close() throws IOException {
+			eof = true;
+			file.close();
+		}
+	}
+}
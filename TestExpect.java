@@ -1,15 +1,33 @@
 import static org.junit.Assert.*;
 
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.nio.channels.Channels;
 import java.nio.channels.Pipe;
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
 import org.apache.log4j.Level;
 import org.junit.After;
 import org.junit.AfterClass;
+import org.junit.Assume;
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
@@ -407,6 +425,1045 @@ public class TestExpect {
 		expect.close();
 	}
 	
+	/**
+	 * test incremental matching: patterns split across several reads, a
+	 * lookbehind reaching into data that was already scanned, and the same
+	 * results with incremental matching turned off; many small reads must
+	 * not make incremental matching rescan what it has already scanned
+	 */
+	@Test
+	public void testIncrementalMatch(){
+		for (boolean incremental : new boolean[] { true, false }) {
+			final Pipe pipe;
+			try {
+				pipe = Pipe.open();
+			} catch (IOException e) {
+				e.printStackTrace();
+				fail("failed to open pipe!");
+				return;
+			}
+			final InputStream in = Channels.newInputStream(pipe.source());
+			final OutputStream out = Channels.newOutputStream(pipe.sink());
+			
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						for (String s : new String[] { "he", "llo w", "or", "ld\n",
+								"user", "@host", ":~$ " }) {
+							out.write(s.getBytes());
+							sleepMillis(100);
+						}
+						for (int i = 0; i < 200; i++) {
+							out.write("output...\n".getBytes());
+							sleepMillis(1);
+						}
+						out.write("done1".getBytes());
+					} catch (IOException e) {
+						e.printStackTrace();
+					} finally {
+						try { out.close(); } catch (IOException e) {}
+					}
+				}
+			}).start();
+			
+			Expect expect = new Expect(in, new NullOutputStream());
+			expect.setIncremental_match(incremental);
+			int retv = expect.expect(5, "world", Pattern.compile("(?<=hello )x"));
+			assertEquals(0, retv);
+			assertEquals("hello ", expect.before);
+			retv = expect.expect(5, Pattern.compile("(?<=@)\\w+:"));
+			assertEquals(0, retv);
+			assertEquals("host:", expect.match);
+			assertEquals("\nuser@", expect.before);
+			retv = expect.expect(5, Pattern.compile("~\\$ $"));
+			assertEquals("~$ ", expect.match);
+			long scanned = expect.scanned_chars;
+			retv = expect.expect(5, Pattern.compile("done\\d"));
+			assertEquals(0, retv);
+			// 2005 chars arrive, each seen about once by the literal scanner,
+			// the DFA and find(); a rescan per read is quadratic
+			if (incremental)
+				assertTrue(expect.scanned_chars - scanned < 4 * 2005);
+			expect.expectEOF();
+			expect.close();
+		}
+	}
+	
+	/**
+	 * test many literal Strings at once: the lowest index wins even if another
+	 * literal occurs earlier, overlapping literals and literals needing
+	 * quotation are found, and Patterns are still matched as regex
+	 */
+	@Test
+	public void testManyLiterals(){
+		final Pipe pipe;
+		try {
+			pipe = Pipe.open();
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail("failed to open pipe!");
+			return;
+		}
+		final InputStream in = Channels.newInputStream(pipe.source());
+		final OutputStream out = Channels.newOutputStream(pipe.sink());
+		
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					out.write("ushers a\\Eb".getBytes());
+					sleepMillis(100);
+					out.write(" login: ".getBytes());
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					try { out.close(); } catch (IOException e) {}
+				}
+			}
+		}).start();
+		
+		Expect expect = new Expect(in, new NullOutputStream());
+		expect.setNotransfer(true);
+		int retv = expect.expect(5, "hers", "she", "he");
+		assertEquals(0, retv);
+		assertEquals("us", expect.before);
+		retv = expect.expect(5, "nomatch", "he", "she");
+		assertEquals(1, retv);
+		assertEquals("us", expect.before);
+		retv = expect.expect(5, "x", "a\\Eb", "she");
+		assertEquals(1, retv);
+		assertEquals("a\\Eb", expect.match);
+		retv = expect.expect(5, "password:", Pattern.compile("log\\w+"), "login:");
+		assertEquals(1, retv);
+		assertEquals("login", expect.match);
+		expect.setNotransfer(false);
+		retv = expect.expect(5, "", "ushers");
+		assertEquals(0, retv);
+		assertEquals("", expect.before);
+		expect.expectEOF();
+		expect.close();
+	}
+	
+	/**
+	 * test expecting a precompiled PatternSet, and the cache behind the
+	 * varargs expect
+	 */
+	@Test
+	public void testPatternSet(){
+		final Pipe pipe;
+		try {
+			pipe = Pipe.open();
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail("failed to open pipe!");
+			return;
+		}
+		final InputStream in = Channels.newInputStream(pipe.source());
+		final OutputStream out = Channels.newOutputStream(pipe.sink());
+		
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					out.write("$ ok\n$ ok\n$ ".getBytes());
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					try { out.close(); } catch (IOException e) {}
+				}
+			}
+		}).start();
+		
+		Expect expect = new Expect(in, new NullOutputStream());
+		Expect.PatternSet prompt = Expect.PatternSet.of("$ ", Pattern.compile("#\\s?"));
+		assertEquals(2, prompt.size());
+		assertEquals(0, expect.expect(5, prompt));
+		
+		Pattern ok = Pattern.compile("o(k)");
+		long hits = Expect.PatternSet.getCacheHits();
+		long misses = Expect.PatternSet.getCacheMisses();
+		assertEquals(1, expect.expect(5, new Object[] { "fail", ok }));
+		assertEquals(1, expect.expect(5, new Object[] { "fail", ok }));
+		assertEquals("ok", expect.match);
+		assertSame(Expect.PatternSet.cached("fail", ok),
+				Expect.PatternSet.cached("fail", ok));
+		assertEquals(hits + 3, Expect.PatternSet.getCacheHits());
+		assertEquals(misses + 1, Expect.PatternSet.getCacheMisses());
+		// other objects are compiled from, and cached by, their current text
+		StringBuilder changing = new StringBuilder("$ ");
+		assertEquals("[\\Q$ \\E]", Expect.PatternSet.cached(changing).toString());
+		changing.setLength(0);
+		changing.append("# ");
+		assertEquals("[\\Q# \\E]", Expect.PatternSet.cached(changing).toString());
+		
+		assertEquals(0, expect.expect(5, prompt));
+		assertEquals("\n", expect.before);
+		expect.expectEOF();
+		expect.close();
+	}
+	
+	/**
+	 * test match_max: the buffer never holds more than match_max chars, the
+	 * dropped chars are counted and spilled, a match arriving after the flood
+	 * is still found
+	 */
+	@Test
+	public void testMatchMax(){
+		final Pipe pipe;
+		try {
+			pipe = Pipe.open();
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail("failed to open pipe!");
+			return;
+		}
+		final InputStream in = Channels.newInputStream(pipe.source());
+		final OutputStream out = Channels.newOutputStream(pipe.sink());
+		
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < 1000; i++)
+						out.write("hello".getBytes());
+					out.write("world".getBytes());
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					try { out.close(); } catch (IOException e) {}
+				}
+			}
+		}).start();
+		
+		Expect expect = new Expect(in, new NullOutputStream());
+		StringBuilder spilled = new StringBuilder();
+		expect.setMatch_max(100);
+		expect.setSpill(spilled);
+		int retv = expect.expect(5, "world");
+		assertEquals(0, retv);
+		assertEquals(95, expect.before.length());
+		assertTrue(expect.before.endsWith("hellohello"));
+		assertEquals(4905, expect.getDiscarded());
+		assertEquals(0, expect.getDiscardedBytes());
+		assertEquals(4905, spilled.length());
+		assertTrue(spilled.toString().startsWith("hellohello"));
+		expect.expectEOF();
+		assertEquals("", expect.before);
+		expect.close();
+	}
+	
+	/**
+	 * test decoding UTF-8 when a multi-byte sequence is split between two
+	 * reads, and a truncated sequence at EOF
+	 */
+	@Test
+	public void testCharset(){
+		final Pipe pipe;
+		try {
+			pipe = Pipe.open();
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail("failed to open pipe!");
+			return;
+		}
+		final InputStream in = Channels.newInputStream(pipe.source());
+		final OutputStream out = Channels.newOutputStream(pipe.sink());
+		final Charset utf8 = Charset.forName("UTF-8");
+		
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					byte[] bytes = "h\u00e9llo w\u00f6rld \u20ac".getBytes(utf8);
+					out.write(bytes, 0, 2);		// half of the e acute
+					sleepMillis(100);
+					out.write(bytes, 2, bytes.length - 3);	// euro sign truncated
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					try { out.close(); } catch (IOException e) {}
+				}
+			}
+		}).start();
+		
+		Expect expect = new Expect(in, new NullOutputStream());
+		expect.setCharset(utf8);
+		assertEquals(0, expect.expect(5, Expect.PatternSet.of("w\u00f6rld")));
+		assertEquals("h\u00e9llo ", expect.before);
+		expect.expectEOF();
+		assertEquals(" \ufffd", expect.before);
+		expect.close();
+	}
+	
+	/**
+	 * test matching raw bytes, with exact and wildcard patterns
+	 */
+	@Test
+	public void testExpectBytes(){
+		final Pipe pipe;
+		try {
+			pipe = Pipe.open();
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail("failed to open pipe!");
+			return;
+		}
+		final InputStream in = Channels.newInputStream(pipe.source());
+		final OutputStream out = Channels.newOutputStream(pipe.sink());
+		
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					out.write(new byte[] { 0, 1, 0x7e, 5 });
+					sleepMillis(100);
+					out.write(new byte[] { (byte) 0xaa, 0x0d, 0x0a, (byte) 0xff });
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					try { out.close(); } catch (IOException e) {}
+				}
+			}
+		}).start();
+		
+		Expect expect = new Expect(in, new NullOutputStream());
+		int retv = expect.expectBytes(5, Expect.BytePattern.hex("7e ?? aa"));
+		assertEquals(0, retv);
+		assertArrayEquals(new byte[] { 0, 1 }, expect.beforeBytes);
+		assertArrayEquals(new byte[] { 0x7e, 5, (byte) 0xaa }, expect.matchBytes);
+		assertNull(expect.match);
+		retv = expect.expectBytes(5, new byte[] { 0x0a, 0x0a },
+				new byte[] { (byte) 0xff });
+		assertEquals(1, retv);
+		assertArrayEquals(new byte[] { 0x0d, 0x0a }, expect.beforeBytes);
+		retv = expect.expectBytes(5, new byte[] { 0x0a, 0x0a });
+		assertEquals(Expect.RETV_EOF, retv);
+		expect.close();
+	}
+	
+	/**
+	 * test that the byte window of expectBytes() is limited by
+	 * match_max_bytes, not by the char limit match_max
+	 */
+	@Test
+	public void testMatchMaxBytes() throws Exception{
+		Pipe pipe = Pipe.open();
+		OutputStream out = Channels.newOutputStream(pipe.sink());
+		Expect expect = new Expect(Channels.newInputStream(pipe.source()),
+				new NullOutputStream());
+		expect.setMatch_max(10);
+		expect.setMatch_max_bytes(100);
+		byte[] bytes = new byte[1003];
+		Arrays.fill(bytes, (byte) 'x');
+		System.arraycopy("end".getBytes(), 0, bytes, 1000, 3);
+		out.write(bytes);
+		assertEquals(0, expect.expectBytes(5, "end".getBytes()));
+		assertEquals(97, expect.beforeBytes.length);
+		assertEquals(903, expect.getDiscardedBytes());
+		assertEquals(0, expect.getDiscarded());
+		out.close();
+		expect.close();
+	}
+	
+	/**
+	 * test reading a SelectableChannel directly, no piping thread is started
+	 */
+	@Test
+	public void testSelectableChannel(){
+		final Pipe pipe;
+		try {
+			pipe = Pipe.open();
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail("failed to open pipe!");
+			return;
+		}
+		final OutputStream out = Channels.newOutputStream(pipe.sink());
+		
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					out.write("hello".getBytes());
+					sleepMillis(100);
+					out.write(" world".getBytes());
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					try { out.close(); } catch (IOException e) {}
+				}
+			}
+		}).start();
+		
+		int pumps = countThreads("Piping InputStream to SelectableChannel Thread");
+		Expect expect = new Expect(pipe.source(), new NullOutputStream());
+		assertTrue(countThreads("Piping InputStream to SelectableChannel Thread") <= pumps);
+		assertEquals(0, expect.expect(5, Expect.PatternSet.of("world")));
+		assertEquals("hello ", expect.before);
+		assertEquals(Expect.RETV_EOF, expect.expectEOF(5));
+		expect.close();
+	}
+	
+	/**
+	 * test piping on a given executor, and that close() ends the piping task
+	 * even though the InputStream never delivers anything
+	 */
+	@Test
+	public void testPumpExecutor() throws InterruptedException{
+		final Pipe pipe;
+		try {
+			pipe = Pipe.open();
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail("failed to open pipe!");
+			return;
+		}
+		final InputStream in = Channels.newInputStream(pipe.source());
+		
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		Expect expect = new Expect(in, new NullOutputStream(), executor);
+		assertEquals(Expect.RETV_TIMEOUT, expect.expect(1, Expect.PatternSet.of("hello")));
+		expect.close();
+		executor.shutdown();
+		assertTrue(executor.awaitTermination(5, TimeUnit.SECONDS));
+	}
+	
+	/**
+	 * test asynchronous expect: a match, a second call while it is pending,
+	 * a timeout, and EOF
+	 */
+	@Test
+	public void testExpectAsync() throws Exception{
+		final Pipe pipe;
+		try {
+			pipe = Pipe.open();
+		} catch (IOException e) {
+			e.printStackTrace();
+			fail("failed to open pipe!");
+			return;
+		}
+		final OutputStream out = Channels.newOutputStream(pipe.sink());
+		
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					sleepMillis(100);
+					out.write("hello".getBytes());
+					sleepMillis(1500);
+					out.write(" world".getBytes());
+				} catch (IOException e) {
+					e.printStackTrace();
+				} finally {
+					try { out.close(); } catch (IOException e) {}
+				}
+			}
+		}).start();
+		
+		Expect expect = new Expect(pipe.source(), new NullOutputStream());
+		CompletableFuture<Expect.MatchResult> f = expect.expectAsync(
+				Duration.ofSeconds(5), Expect.PatternSet.of("nomatch", "llo"));
+		try {	// rejected without disturbing the pending one
+			expect.expectAsync(Duration.ofSeconds(5),
+					Expect.PatternSet.of(Pattern.compile("h.")))
+					.get(5, TimeUnit.SECONDS);
+			fail("should be rejected while another one is pending");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof IllegalStateException);
+		}
+		Expect.MatchResult r = f.get(5, TimeUnit.SECONDS);
+		assertEquals(1, r.index);
+		assertEquals("he", r.before);
+		assertSame(expect, r.expect);
+		
+		f = expect.expectAsync(Duration.ofMillis(500), Expect.PatternSet.of("world"));
+		try {
+			f.get(5, TimeUnit.SECONDS);
+			fail("should time out");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof Expect.TimeoutException);
+		}
+		
+		r = expect.expectEOFAsync(Duration.ofSeconds(5)).get(5, TimeUnit.SECONDS);
+		assertEquals(Expect.RETV_EOF, r.index);
+		assertTrue(r.isSuccess());
+		assertEquals(" world", r.before);
+		expect.close();
+	}
+
+	/**
+	 * test sub-second timeouts, which are kept by the timer wheel
+	 */
+	@Test
+	public void testDurationTimeout() throws Exception{
+		Pipe pipe = Pipe.open();
+		final OutputStream out = Channels.newOutputStream(pipe.sink());
+		Expect expect = new Expect(pipe.source(), new NullOutputStream());
+
+		long start = System.nanoTime();
+		assertEquals(Expect.RETV_TIMEOUT,
+				expect.expect(Duration.ofMillis(200), Expect.PatternSet.of("hello")));
+		long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue(took >= 200);
+		assertTrue(took < 1000);
+
+		//input within the timeout restarts it
+		expect.setRestart_timeout_upon_receive(true);
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					for (int i = 0; i < 4; i++) {
+						sleepMillis(150);
+						out.write("x".getBytes());
+					}
+					out.write("hello".getBytes());
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}).start();
+		assertEquals(0, expect.expect(Duration.ofMillis(400), Expect.PatternSet.of("hello")));
+		assertEquals("xxxx", expect.before);
+		expect.close();
+	}
+
+	/**
+	 * test a Log of one's own: only messages of enabled levels reach it
+	 */
+	@Test
+	public void testLog() throws Exception{
+		Pipe pipe = Pipe.open();
+		final OutputStream out = Channels.newOutputStream(pipe.sink());
+		final List<String> messages = new ArrayList<String>();
+		Expect expect = new Expect(pipe.source(), new NullOutputStream());
+		assertSame(Expect.Log.OFF, expect.getLog());
+		expect.setLog(new Expect.Log() {
+			@Override
+			public boolean isEnabled(Expect.LogLevel level) {
+				return level == Expect.LogLevel.DEBUG;
+			}
+			@Override
+			public void log(Expect.LogLevel level, String message, Throwable t) {
+				assertEquals(Expect.LogLevel.DEBUG, level);
+				messages.add(message);
+			}
+		});
+		out.write("hello".getBytes());
+		expect.send("ignored");
+		assertEquals(0, expect.expect(5, Expect.PatternSet.of("hello")));
+		assertTrue(messages.contains("Obtained following from InputStream: hello"));
+		expect.close();
+	}
+
+	/**
+	 * test queued sends and a pipeline of three commands, against a "shell"
+	 * that answers each line with a prompt
+	 */
+	@Test
+	public void testPipeline() throws Exception{
+		final Pipe toShell = Pipe.open();
+		final Pipe fromShell = Pipe.open();
+		final int[] writes = new int[1];
+		OutputStream out = new FilterOutputStream(
+				Channels.newOutputStream(toShell.sink())) {
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				writes[0]++;
+				out.write(b, off, len);
+			}
+		};
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					BufferedReader in = new BufferedReader(new InputStreamReader(
+							Channels.newInputStream(toShell.source())));
+					OutputStream out = Channels.newOutputStream(fromShell.sink());
+					String line;
+					while ((line = in.readLine()) != null)
+						out.write((line.toUpperCase() + "\n$ ").getBytes());
+					out.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}).start();
+
+		Expect expect = new Expect(fromShell.source(), out);
+		expect.sendNoFlush("one\n");
+		expect.sendNoFlush("two\n");
+		assertEquals(0, writes[0]);
+		expect.flush();
+		assertEquals(1, writes[0]);
+		assertEquals(0, expect.expect(5, Expect.PatternSet.of("$ ")));
+		assertEquals("ONE\n", expect.before);
+		assertEquals(0, expect.expect(5, Expect.PatternSet.of("$ ")));
+		assertEquals("TWO\n", expect.before);
+
+		List<Expect.MatchResult> results = expect.pipeline().add("a\n", "$ ")
+				.add("b\n", "$ ").add("c\n", "$ ").run(5);
+		assertEquals(2, writes[0]);
+		assertEquals(3, results.size());
+		assertEquals("A\n", results.get(0).before);
+		assertEquals("B\n", results.get(1).before);
+		assertEquals("C\n", results.get(2).before);
+
+		results = expect.pipeline().add("d\n", "$ ").add("e\n", "nothing").run(1);
+		assertEquals(2, results.size());
+		assertTrue(results.get(0).isSuccess());
+		assertEquals(Expect.RETV_TIMEOUT, results.get(1).index);
+		expect.close();
+	}
+
+	/**
+	 * test the transcript gets all input, and drops what does not fit while
+	 * its stream is stuck, on threads of its own
+	 */
+	@Test
+	public void testTranscript() throws Exception{
+		Pipe pipe = Pipe.open();
+		OutputStream out = Channels.newOutputStream(pipe.sink());
+		Expect expect = new Expect(pipe.source(), new NullOutputStream());
+		ByteArrayOutputStream copy = new ByteArrayOutputStream();
+		Expect.Transcript transcript = new Expect.Transcript(copy);
+		expect.setTranscript(transcript);
+		out.write("hello world".getBytes());
+		assertEquals(0, expect.expect(5, Expect.PatternSet.of("hello")));
+		out.close();
+		assertEquals(Expect.RETV_EOF, expect.expectEOF(5));
+		transcript.close();
+		assertEquals("hello world", copy.toString());
+		assertEquals(0, transcript.getDropped());
+		expect.close();
+
+		// read from an InputStream: transcribed without any expect call
+		pipe = Pipe.open();
+		out = Channels.newOutputStream(pipe.sink());
+		expect = new Expect(Channels.newInputStream(pipe.source()),
+				new NullOutputStream());
+		copy = new ByteArrayOutputStream();
+		transcript = new Expect.Transcript(copy);
+		expect.setTranscript(transcript);
+		out.write("nobody expects this".getBytes());
+		out.close();
+		for (int i = 0; i < 50 && copy.size() < 19; i++)
+			sleepMillis(100);
+		transcript.close();
+		assertEquals("nobody expects this", copy.toString());
+		expect.close();
+
+		final CountDownLatch stuck = new CountDownLatch(1);
+		final String[] writerThread = new String[1];
+		OutputStream slow = new OutputStream() {
+			@Override
+			public void write(int b) throws IOException {
+				writerThread[0] = Thread.currentThread().getName();
+				try {
+					stuck.await();
+				} catch (InterruptedException e) {}
+			}
+		};
+		transcript = new Expect.Transcript(slow, 10,
+				Expect.Transcript.Overflow.DROP_NEWEST, null);
+		for (int i = 0; i < 5; i++)
+			transcript.offer("12345".getBytes());	// returns at once
+		assertTrue(transcript.getDropped() >= 10);
+		stuck.countDown();
+		transcript.close();
+		assertEquals(0, transcript.getQueued());
+		// not on the pumps' executor, which a stalled transcript could block
+		assertEquals("Expect transcript writer", writerThread[0]);
+	}
+
+	/**
+	 * test the spawned command has a terminal of the given size (where
+	 * script(1) is available, else it is skipped)
+	 */
+	@Test
+	public void testSpawnPty() throws Exception{
+		Assume.assumeTrue(new File("/usr/bin/script").canExecute());
+		Expect expect = Expect.spawnPty(
+				"stty size; test -t 1 && echo tty; read line; echo got $line",
+				30, 100);
+		assertEquals(0, expect.expect(5, Expect.PatternSet.of("30 100\r\ntty\r\n")));
+		expect.send("hello\n");
+		assertEquals(0, expect.expect(5, Expect.PatternSet.of("got hello")));
+		assertEquals(Expect.RETV_EOF, expect.expectEOF(5));
+		assertEquals(0, expect.getProcess().waitFor());
+		expect.close();
+	}
+
+	/**
+	 * test interact(): bytes go both ways until an escape sequence (split
+	 * across two writes) from the user; what follows it is kept for the next
+	 * interact()
+	 */
+	@Test
+	public void testInteract() throws Exception{
+		Pipe session = Pipe.open();
+		final Pipe user = Pipe.open();
+		final OutputStream remote = Channels.newOutputStream(session.sink());
+		ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		ByteArrayOutputStream shown = new ByteArrayOutputStream();
+		Expect expect = new Expect(session.source(), sent);
+		remote.write("login: ".getBytes());
+		assertEquals(0, expect.expect(5, Expect.PatternSet.of("login: ")));
+		remote.write("welcome\n".getBytes());
+		TestExpect.sleepMillis(100);
+		assertEquals(Expect.RETV_TIMEOUT, expect.expect(0, Expect.PatternSet.of("$ ")));
+
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					OutputStream typing = Channels.newOutputStream(user.sink());
+					typing.write("ls\n".getBytes());
+					remote.write("files\n".getBytes());
+					typing.write("pwd\n~".getBytes());
+					sleepMillis(200);
+					typing.write(".more".getBytes());
+					sleepMillis(200);
+					typing.write("~x".getBytes());
+					typing.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}).start();
+		Expect.BytePattern escape = Expect.BytePattern.of("~.".getBytes());
+		assertEquals(0, expect.interact(user.source(), Channels.newChannel(shown), escape));
+		assertEquals("ls\npwd\n", sent.toString());
+		assertTrue(shown.toString().startsWith("welcome\n"));
+		assertEquals(-1, shown.toString().indexOf('~'));
+
+		assertEquals(Expect.RETV_EOF, expect.interact(user.source(), Channels.newChannel(shown), escape));
+		assertEquals("ls\npwd\nmore~x", sent.toString());
+		assertEquals("welcome\nfiles\n", shown.toString());
+		expect.close();
+	}
+
+	/**
+	 * test the literal every match of a regex contains, and that a regex is
+	 * only tried (and still matched, across reads) once its literal arrived
+	 */
+	@Test
+	public void testRequiredLiteral() throws Exception{
+		assertEquals("Password:", Expect.requiredLiteralOf(Pattern.compile("[Pp]?Password: ?")));
+		assertEquals("$ ", Expect.requiredLiteralOf(Pattern.compile(".*\\$ $")));
+		assertEquals("ab.c", Expect.requiredLiteralOf(Pattern.compile("x*ab\\.cd?(ef)+\\d{2}")));
+		assertEquals("login", Expect.requiredLiteralOf(Pattern.compile("\\x41login\\u0042{0,3}")));
+		assertEquals("a|b", Expect.requiredLiteralOf(Pattern.compile("\\Qa|b\\E")));
+		assertNull(Expect.requiredLiteralOf(Pattern.compile("yes|no")));
+		assertNull(Expect.requiredLiteralOf(Pattern.compile("(?i)yes")));
+		assertNull(Expect.requiredLiteralOf(Pattern.compile("yes", Pattern.CASE_INSENSITIVE)));
+		assertNull(Expect.requiredLiteralOf(Pattern.compile("[a-z]+\\s*(\\d)")));
+
+		Pipe pipe = Pipe.open();
+		OutputStream out = Channels.newOutputStream(pipe.sink());
+		Expect expect = new Expect(pipe.source(), new NullOutputStream());
+		Expect.PatternSet prompts = Expect.PatternSet.of(
+				Pattern.compile("\\w+@\\w+:~\\$ "), Pattern.compile("[Pp]assword: ?"));
+		out.write("Last login: today\nuser@ho".getBytes());
+		assertEquals(Expect.RETV_TIMEOUT, expect.expect(Duration.ofMillis(200), prompts));
+		out.write("st:~$ ".getBytes());
+		assertEquals(0, expect.expect(5, prompts));
+		assertEquals("user@host:~$ ", expect.match);
+		out.write("sudo\n[sudo] password: ".getBytes());
+		assertEquals(1, expect.expect(5, prompts));
+		assertEquals("sudo\n[sudo] ", expect.before);
+		out.close();
+		expect.close();
+	}
+
+	/**
+	 * test that the Matchers reused for a PatternSet see what arrives later,
+	 * and that before and match are filled as getBefore() and getMatch()
+	 */
+	@Test
+	public void testReusedMatchers() throws Exception{
+		Pipe pipe = Pipe.open();
+		OutputStream out = Channels.newOutputStream(pipe.sink());
+		Expect expect = new Expect(pipe.source(), new NullOutputStream());
+		Expect.PatternSet prompt = Expect.PatternSet.of(Pattern.compile("\\$ "));
+		out.write("one\n$ ".getBytes());
+		assertEquals(0, expect.expect(5, prompt));
+		assertEquals("one\n", expect.before);
+		assertSame(expect.before, expect.getBefore());
+
+		out.write("two\n".getBytes());
+		assertEquals(Expect.RETV_TIMEOUT, expect.expect(Duration.ofMillis(100), prompt));
+		out.write("$ rest".getBytes());
+		assertEquals(0, expect.expect(5, prompt));
+		assertEquals("two\n", expect.before);
+		assertEquals("$ ", expect.match);
+		assertSame(expect.match, expect.getMatch());
+		assertEquals(0, expect.expect(5, Expect.PatternSet.of(Pattern.compile("res"))));
+		assertEquals("res", expect.match);
+		out.close();
+		assertEquals(Expect.RETV_EOF, expect.expectEOF(5));
+		assertEquals("t", expect.before);
+		expect.close();
+	}
+
+	/**
+	 * test that calling expect(int, List) again with the same Patterns, in
+	 * a new List, reuses the Matchers
+	 */
+	@Test
+	public void testListReusesMatchers() throws Exception{
+		Pipe pipe = Pipe.open();
+		OutputStream out = Channels.newOutputStream(pipe.sink());
+		Expect expect = new Expect(pipe.source(), new NullOutputStream());
+		Pattern prompt = Pattern.compile("\\w+\\$ ");
+		out.write("one$ two$ ".getBytes());
+		assertEquals(0, expect.expect(5, Arrays.asList(prompt)));
+		assertEquals("one$ ", expect.match);
+		Matcher m = expect.matchers[0];
+		assertNotNull(m);
+		assertEquals(0, expect.expect(5, new ArrayList<Pattern>(Arrays.asList(prompt))));
+		assertEquals("two$ ", expect.match);
+		assertTrue(m == expect.matchers[0]);
+		assertEquals(Expect.RETV_TIMEOUT, expect.expect(0,
+				Arrays.asList(Pattern.compile("\\w+\\$ "))));
+		assertTrue(m != expect.matchers[0]);
+		out.close();
+		expect.close();
+	}
+
+	/**
+	 * test combined_match: the automaton agrees with find() on which
+	 * patterns match random input, patterns outside its subset are left to
+	 * java.util.regex, and expect() returns the same results
+	 */
+	@Test
+	public void testCombinedMatch() throws Exception{
+		String[] regexes = { "a(b|c)*d", "x?y{2,3}", "[^a-c\\n]+z", ".\\.1",
+				"(ab|a)(bc|c)", "(?:b.)+?a", "\\d{2}|q\\s", "^ab", "(a)\\1",
+				"a*+b", "[\\w&&[^b]]z", "[-\\w]{3}\\x2e" };
+		boolean[] handled = { true, true, true, true, true, true, true, false,
+				false, false, false, true };
+		List<Pattern> patterns = new ArrayList<Pattern>();
+		for (String regex : regexes)
+			patterns.add(Pattern.compile(regex));
+		Expect.RegexAutomaton automaton = Expect.RegexAutomaton.of(patterns,
+				new String[patterns.size()]);
+		for (int i = 0; i < regexes.length; i++)
+			assertEquals(regexes[i], handled[i], automaton.handles(i));
+		java.util.Random random = new java.util.Random(42);
+		String alphabet = "abcdxyz.1 \n-";
+		Expect.RegexAutomaton.Dfa dfa = automaton.new Dfa();
+		for (int round = 0; round < 3000; round++) {
+			char[] text = new char[random.nextInt(12)];
+			for (int k = 0; k < text.length; k++)
+				text[k] = alphabet.charAt(random.nextInt(alphabet.length()));
+			Expect.CharRing ring = new Expect.CharRing();
+			Expect.RegexAutomaton.Dfa.Scanner scanner = dfa.new Scanner();
+			ring.append(text, 0, text.length / 2);	// in two reads
+			scanner.scan(ring);
+			ring.append(text, text.length / 2, text.length - text.length / 2);
+			scanner.scan(ring);
+			for (int i = 0; i < regexes.length; i++)
+				if (handled[i])
+					assertEquals(regexes[i] + " on " + new String(text),
+							patterns.get(i).matcher(ring).find(),
+							!scanner.ruledOut(i));
+		}
+
+		Pipe pipe = Pipe.open();
+		OutputStream out = Channels.newOutputStream(pipe.sink());
+		Expect expect = new Expect(pipe.source(), new NullOutputStream());
+		expect.setCombined_match(true);
+		Expect.PatternSet set = Expect.PatternSet.of(Pattern.compile("^fail"),
+				Pattern.compile("err(or)? \\d+"), "done", Pattern.compile("w\\w+d"));
+		out.write("hello world, error ".getBytes());
+		assertEquals(3, expect.expect(5, set));
+		assertEquals("world", expect.match);
+		TestExpect.sleepMillis(100);
+		out.write("42 done".getBytes());
+		assertEquals(1, expect.expect(5, set));
+		assertEquals(", ", expect.before);
+		assertEquals("error 42", expect.match);
+		assertEquals(2, expect.expect(5, set));
+		out.write("\nfail".getBytes());
+		assertEquals(Expect.RETV_TIMEOUT, expect.expect(Duration.ofMillis(200), set));
+		out.close();
+		expect.close();
+	}
+
+	/**
+	 * test expectLine: whole lines only, ^ and $ at the line ends, a line
+	 * completed by a later read, "\r\n", and the last line at EOF
+	 */
+	@Test
+	public void testExpectLine() throws Exception{
+		Pipe pipe = Pipe.open();
+		OutputStream out = Channels.newOutputStream(pipe.sink());
+		Expect expect = new Expect(pipe.source(), new NullOutputStream());
+		Expect.PatternSet set = Expect.PatternSet.of(
+				Pattern.compile("^BUILD (\\w+)$"), Pattern.compile("\\d+ errors?$"));
+		out.write("compiling\nBUILD OK so far\nBUILD SUCC".getBytes());
+		assertEquals(Expect.RETV_TIMEOUT, expect.expectLine(Duration.ofMillis(200), set));
+		out.write("ESS\r\n2 errors\n".getBytes());
+		assertEquals(0, expect.expectLine(5, set));
+		assertEquals("compiling\nBUILD OK so far\n", expect.before);
+		assertEquals("BUILD SUCCESS", expect.match);
+		assertEquals(1, expect.expectLine(5, set));
+		assertEquals("", expect.before);
+		assertEquals("2 errors", expect.match);
+
+		StringBuilder flood = new StringBuilder();
+		for (int i = 0; i < 5000; i++)
+			flood.append("line ").append(i).append('\n');
+		out.write(flood.toString().getBytes());
+		assertEquals(0, expect.expectLine(5, Pattern.compile("^line 4999$")));
+		assertEquals(flood.substring(0, flood.length() - "line 4999\n".length()),
+				expect.before);
+		out.write("done".getBytes());
+		out.close();
+		assertEquals(0, expect.expectLine(5, "done"));
+		assertEquals("done", expect.match);
+		expect.close();
+	}
+
+	/**
+	 * test that a regex backtracking for ages is given up on at the
+	 * timeout, and counted; a timeout of 0 still checks the buffer once
+	 */
+	@Test
+	public void testOverBudget() throws Exception{
+		Pipe pipe = Pipe.open();
+		OutputStream out = Channels.newOutputStream(pipe.sink());
+		Expect expect = new Expect(pipe.source(), new NullOutputStream());
+		StringBuilder as = new StringBuilder();
+		for (int i = 0; i < 40; i++)
+			as.append('a');
+		out.write(as.toString().getBytes());
+		Expect.PatternSet slow = Expect.PatternSet.of(Pattern.compile("(.*a){12}[bc]"));
+		long start = System.nanoTime();
+		assertEquals(Expect.RETV_TIMEOUT, expect.expect(Duration.ofMillis(300), slow));
+		long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+		assertTrue("took " + took + "ms", took >= 250 && took < 2000);
+		assertEquals(1, expect.getOverBudgetCount());
+
+		assertEquals(Expect.RETV_TIMEOUT, expect.expectLine(Duration.ofMillis(300), slow));
+		out.write("\n".getBytes());
+		assertEquals(Expect.RETV_TIMEOUT, expect.expectLine(Duration.ofMillis(300), slow));
+		assertEquals(2, expect.getOverBudgetCount());
+
+		assertEquals(0, expect.expect(0, Expect.PatternSet.of(Pattern.compile("(a+)+\\n"))));
+		out.close();
+		expect.close();
+	}
+
+	/**
+	 * test interact() twice with the same non-selectable user channel: the
+	 * pump reading it is kept, so no keystroke goes to an abandoned one
+	 */
+	@Test
+	public void testInteractNonSelectable() throws Exception{
+		Pipe session = Pipe.open();
+		Pipe user = Pipe.open();
+		final OutputStream remote = Channels.newOutputStream(session.sink());
+		OutputStream typing = Channels.newOutputStream(user.sink());
+		java.nio.channels.ReadableByteChannel userIn =
+				Channels.newChannel(Channels.newInputStream(user.source()));
+		ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		ByteArrayOutputStream shown = new ByteArrayOutputStream();
+		Expect expect = new Expect(session.source(), sent);
+		Expect.BytePattern escape = Expect.BytePattern.of("~.".getBytes());
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				sleepMillis(3000);	// ends a hanging interact() with EOF
+				try { remote.close(); } catch (IOException e) {}
+			}
+		}).start();
+
+		typing.write("ls\n~.".getBytes());
+		assertEquals(0, expect.interact(userIn, Channels.newChannel(shown), escape));
+		assertEquals("ls\n", sent.toString());
+		typing.write("pwd\n~.".getBytes());
+		assertEquals(0, expect.interact(userIn, Channels.newChannel(shown), escape));
+		assertEquals("ls\npwd\n", sent.toString());
+		typing.close();
+		expect.close();
+	}
+
+	/**
+	 * test that the log4j adapter only reports the levels some appender
+	 * writes as enabled
+	 */
+	@Test
+	public void testLogLevel() throws Exception{
+		Expect.addLogToConsole(Level.INFO);
+		Expect.Log log = Expect.getDefaultLog();
+		assertFalse(log.isEnabled(Expect.LogLevel.TRACE));
+		assertFalse(log.isEnabled(Expect.LogLevel.DEBUG));
+		assertTrue(log.isEnabled(Expect.LogLevel.INFO));
+		Expect.addLogToConsole(Level.WARN);
+		assertTrue(log.isEnabled(Expect.LogLevel.INFO));
+		Expect.addLogToConsole(Level.DEBUG);
+		assertTrue(log.isEnabled(Expect.LogLevel.DEBUG));
+		assertFalse(log.isEnabled(Expect.LogLevel.TRACE));
+		Expect.turnOffLogging();
+		assertFalse(Expect.getDefaultLog().isEnabled(Expect.LogLevel.ERROR));
+	}
+
+	/**
+	 * test that expect() and expectAsync() time out on time even while
+	 * another task of the timer is slow; the session gets a wheel of its own
+	 * so that other tests' timeouts are not held up
+	 */
+	@Test
+	public void testStalledTimer() throws Exception{
+		Pipe pipe = Pipe.open();
+		Expect expect = new Expect(pipe.source(), new NullOutputStream());
+		expect.timerWheel = Expect.TimerWheel.start("Stalled timer");
+		expect.timerWheel.arm(TimeUnit.MILLISECONDS.toNanos(10),
+				new Runnable() {
+					@Override
+					public void run() {
+						sleepMillis(4000);
+					}
+				});
+		sleepMillis(100);
+		long start = System.nanoTime();
+		int retv = expect.expect(1, Expect.PatternSet.of("never"));
+		long elapsed = System.nanoTime() - start;
+		assertEquals(Expect.RETV_TIMEOUT, retv);
+		assertTrue(elapsed < TimeUnit.MILLISECONDS.toNanos(2500));
+		
+		start = System.nanoTime();
+		try {
+			expect.expectAsync(Duration.ofMillis(500),
+					Expect.PatternSet.of("never")).get(5, TimeUnit.SECONDS);
+			fail("should time out");
+		} catch (ExecutionException e) {
+			assertTrue(e.getCause() instanceof Expect.TimeoutException);
+		}
+		elapsed = System.nanoTime() - start;
+		assertTrue(elapsed < TimeUnit.MILLISECONDS.toNanos(1500));
+		expect.close();
+	}
+
+	static int countThreads(String name) {
+		int n = 0;
+		for (Thread t : Thread.getAllStackTraces().keySet())
+			if (t.getName().equals(name))
+				n++;
+		return n;
+	}
+	
+	public static void sleepMillis(int millis) {
+		try {
+			Thread.sleep(millis);
+		} catch (InterruptedException e) {
+			fail("No one should interrupt me while I am sleeping!");
+		}
+	}
+	
 	public static void sleep(int sec) {
 		try {
 			Thread.sleep(sec * 1000);
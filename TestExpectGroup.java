@@ -0,0 +1,141 @@
+import static org.junit.Assert.*;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+
+import org.junit.Test;
+
+/**
+ * JUnit Tests for ExpectGroup. Each session reads from its own pipe, a
+ * thread writes to the sinks.
+ * 
+ */
+public class TestExpectGroup {
+	
+	/**
+	 * test that the session which produces a pattern is the one returned,
+	 * data already in another session's buffer wins, and EOF is reported
+	 * with its session
+	 */
+	@Test
+	public void testExpectGroup() throws IOException {
+		final Pipe[] pipes = new Pipe[3];
+		Expect[] sessions = new Expect[3];
+		ExpectGroup group = new ExpectGroup();
+		for (int i = 0; i < pipes.length; i++) {
+			pipes[i] = Pipe.open();
+			sessions[i] = new Expect(pipes[i].source(), new NullOutputStream());
+			group.add(sessions[i]);
+		}
+		
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					OutputStream out2 = Channels.newOutputStream(pipes[2].sink());
+					OutputStream out1 = Channels.newOutputStream(pipes[1].sink());
+					TestExpect.sleepMillis(100);
+					out2.write("login: ".getBytes());
+					TestExpect.sleepMillis(100);
+					out1.write("$ Password: ".getBytes());
+					out1.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}).start();
+		
+		Expect.MatchResult r = group.expect(5, "Password:", "login:");
+		assertSame(sessions[2], r.expect);
+		assertEquals(1, r.index);
+		assertEquals("login:", r.match);
+		assertEquals("login:", sessions[2].match);
+		
+		r = group.expect(5, "$ ");
+		assertSame(sessions[1], r.expect);
+		assertEquals(0, r.index);
+		assertNull(sessions[2].match);
+		
+		r = group.expect(5, "Password: ");
+		assertSame(sessions[1], r.expect);
+		r = group.expect(5, "nomatch");
+		assertSame(sessions[1], r.expect);
+		assertEquals(Expect.RETV_EOF, r.index);
+		group.remove(sessions[1]);
+		
+		r = group.expect(1, "nomatch");
+		assertEquals(Expect.RETV_TIMEOUT, r.index);
+		assertNull(r.expect);
+		
+		group.close();
+		for (Expect expect : sessions)
+			expect.close();
+	}
+	
+	/**
+	 * test that a session removed from the group can be added again
+	 */
+	@Test
+	public void testRemoveThenAdd() throws IOException {
+		Pipe pipe = Pipe.open();
+		Expect expect = new Expect(pipe.source(), new NullOutputStream());
+		ExpectGroup group = new ExpectGroup();
+		group.add(expect);
+		assertEquals(Expect.RETV_TIMEOUT, group.expect(0, "login:").index);
+		group.remove(expect);
+		group.add(expect);
+		OutputStream out = Channels.newOutputStream(pipe.sink());
+		out.write("login: ".getBytes());
+		Expect.MatchResult r = group.expect(5, "login:");
+		assertSame(expect, r.expect);
+		assertEquals(0, r.index);
+		out.close();
+		group.close();
+		expect.close();
+	}
+	
+	/**
+	 * test that input to a session with restart_timeout_upon_receive starts
+	 * the group's timeout again
+	 */
+	@Test
+	public void testRestartTimeout() throws IOException {
+		final Pipe pipe = Pipe.open();
+		Expect expect = new Expect(pipe.source(), new NullOutputStream());
+		expect.setRestart_timeout_upon_receive(true);
+		ExpectGroup group = new ExpectGroup();
+		group.add(expect);
+		
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					OutputStream out = Channels.newOutputStream(pipe.sink());
+					for (int i = 0; i < 4; i++) {
+						TestExpect.sleepMillis(600);
+						out.write(".".getBytes());
+					}
+					out.write("done".getBytes());
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}).start();
+		
+		Expect.MatchResult r = group.expect(1, "done");
+		assertSame(expect, r.expect);
+		assertEquals(0, r.index);
+		assertEquals("....", r.before);
+		
+		group.close();
+		expect.close();
+	}
+	
+	class NullOutputStream extends OutputStream {
+		@Override
+		public void write(int b) throws IOException {
+		}
+	}
+}
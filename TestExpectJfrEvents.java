@@ -0,0 +1,80 @@
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * JUnit Tests for ExpectJfrEvents, skipped where Expect did not load them
+ * (e.g. without the jdk.jfr module).
+ *
+ */
+public class TestExpectJfrEvents {
+
+	@Before
+	public void setUp() {
+		Assume.assumeTrue(Expect.Events.CURRENT instanceof ExpectJfrEvents);
+	}
+
+	/**
+	 * test the Flight Recorder events of an expect, a send and the pump, and
+	 * that no event is created while nothing records it
+	 */
+	@Test
+	public void testFlightRecorder() throws Exception {
+		assertNull(Expect.Events.CURRENT.beginExpect());
+		assertNull(Expect.Events.CURRENT.beginSend());
+		File file = File.createTempFile("expect", ".jfr");
+		file.deleteOnExit();
+		Recording recording = new Recording();
+		for (String name : new String[] { "Expect.Expect", "Expect.Send", "Expect.PumpRead" })
+			recording.enable(name).withThreshold(Duration.ZERO);
+		recording.start();
+		Pipe pipe = Pipe.open();
+		OutputStream out = Channels.newOutputStream(pipe.sink());
+		ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		Expect expect = new Expect(Channels.newInputStream(pipe.source()), sent);
+		expect.send("hello\n");
+		out.write("prompt$ ".getBytes());
+		assertEquals(0, expect.expect(5, Expect.PatternSet.of("$ ")));
+		out.close();
+		assertEquals(Expect.RETV_EOF, expect.expectEOF(5));
+		expect.close();
+		recording.stop();
+		recording.dump(file.toPath());
+		recording.close();
+
+		int expects = 0, sends = 0, reads = 0;
+		for (RecordedEvent event : RecordingFile.readAllEvents(file.toPath())) {
+			String name = event.getEventType().getName();
+			if (name.equals("Expect.Expect") && event.getInt("outcome") == 0) {
+				expects++;
+				assertEquals("[\\Q$ \\E]", event.getString("patterns"));
+				assertEquals(TimeUnit.SECONDS.toNanos(5), event.getLong("timeout"));
+				assertEquals(8, event.getLong("bytesRead"));
+				long scanned = event.getLong("charsScanned");
+				assertTrue(scanned > 0 && scanned <= 8);	// no char twice
+			} else if (name.equals("Expect.Send")) {
+				sends++;
+				assertEquals(6, event.getLong("bytes"));
+			} else if (name.equals("Expect.PumpRead") && event.getInt("bytes") > 0) {
+				reads++;
+			}
+		}
+		assertEquals(1, expects);
+		assertEquals(1, sends);
+		assertTrue(reads >= 1);
+	}
+}
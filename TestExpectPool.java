@@ -0,0 +1,128 @@
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * JUnit Tests for ExpectPool, with cat(1) as the spawned program: it echoes
+ * each line sent to it.
+ *
+ */
+public class TestExpectPool {
+
+	static final ExpectPool.Factory CAT = new ExpectPool.Factory() {
+		@Override
+		public Expect create() {
+			Expect session = Expect.spawn("cat");
+			if (session == null)
+				return null;
+			session.send("ready\n");
+			if (session.expect(5, Expect.PatternSet.of("ready\n")) < 0) {
+				session.close();
+				return null;
+			}
+			return session;
+		}
+	};
+
+	/**
+	 * test hits after warm-up, a miss that waits for a release, and
+	 * eviction of a broken session
+	 */
+	@Test
+	public void testPool() throws Exception {
+		ExpectPool pool = new ExpectPool(CAT, ExpectPool.resetBySending(
+				"reset\n", Expect.PatternSet.of("reset\n"), 5), 2);
+		for (int i = 0; i < 50 && pool.getIdle() < 2; i++)
+			TestExpect.sleepMillis(100);
+		assertEquals(2, pool.getIdle());
+
+		final Expect a = pool.lease(1, TimeUnit.SECONDS);
+		Expect b = pool.lease(1, TimeUnit.SECONDS);
+		assertNotNull(a);
+		assertNotNull(b);
+		assertNotSame(a, b);
+		assertEquals(2, pool.getHits());
+		assertEquals(0, pool.getMisses());
+
+		// full: times out, then gets a once it is released
+		assertNull(pool.lease(100, TimeUnit.MILLISECONDS));
+		final ExpectPool p = pool;
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				TestExpect.sleepMillis(200);
+				p.release(a);
+			}
+		}).start();
+		Expect c = pool.lease(5, TimeUnit.SECONDS);
+		assertSame(a, c);
+		assertEquals(2, pool.getMisses());
+		assertTrue(pool.getMaxWaitNanos() >= TimeUnit.MILLISECONDS.toNanos(150));
+
+		// b is broken: released, evicted and replaced
+		b.getProcess().destroy();
+		b.getProcess().waitFor();
+		pool.release(b);
+		assertEquals(1, pool.getEvictions());
+		Expect d = pool.lease(5, TimeUnit.SECONDS);
+		assertNotNull(d);
+		assertNotSame(b, d);
+		d.send("hello\n");
+		assertEquals(0, d.expect(5, Expect.PatternSet.of("hello\n")));
+
+		pool.release(c);
+		pool.release(d);
+		pool.close();
+		assertEquals(0, pool.getIdle());
+		assertEquals(0, pool.getLeased());
+	}
+
+	/**
+	 * test that an idle session without a process is evicted once its
+	 * input stream has ended
+	 */
+	@Test
+	public void testEvictAtEOF() throws Exception {
+		final List<Pipe> pipes = new ArrayList<Pipe>();
+		ExpectPool pool = new ExpectPool(new ExpectPool.Factory() {
+			@Override
+			public Expect create() {
+				try {
+					Pipe pipe = Pipe.open();
+					synchronized (pipes) {
+						pipes.add(pipe);
+					}
+					return new Expect(Channels.newInputStream(pipe.source()),
+							new ByteArrayOutputStream());
+				} catch (IOException e) {
+					return null;
+				}
+			}
+		}, null, 1);
+		Expect a = pool.lease(5, TimeUnit.SECONDS);
+		assertNotNull(a);
+		pool.release(a);
+		assertEquals(1, pool.getIdle());
+
+		synchronized (pipes) {
+			pipes.get(0).sink().close();
+		}
+		for (int i = 0; i < 50 && !a.isInputEnded(); i++)
+			TestExpect.sleepMillis(100);
+		Expect b = pool.lease(5, TimeUnit.SECONDS);
+		assertNotNull(b);
+		assertNotSame(a, b);
+		assertEquals(1, pool.getEvictions());
+
+		pool.release(b);
+		pool.close();
+	}
+}
@@ -0,0 +1,61 @@
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * JUnit Tests for ExpectRecorder: a session read from a pipe is recorded,
+ * then replayed into another Expect object.
+ *
+ */
+public class TestExpectRecorder {
+
+	/**
+	 * test that a replay gives the same input, with or without the original
+	 * timing, and the sends are recorded too
+	 */
+	@Test
+	public void testRecordAndReplay() throws Exception {
+		File file = File.createTempFile("expect", ".rec");
+		file.deleteOnExit();
+
+		Pipe pipe = Pipe.open();
+		OutputStream out = Channels.newOutputStream(pipe.sink());
+		ByteArrayOutputStream sent = new ByteArrayOutputStream();
+		Expect expect = new Expect(pipe.source(), sent);
+		ExpectRecorder recorder = new ExpectRecorder(file);
+		expect.setRecorder(recorder);
+		out.write("login: ".getBytes());
+		assertEquals(0, expect.expect(5, Expect.PatternSet.of("login: ")));
+		expect.send("root\n");
+		TestExpect.sleepMillis(300);
+		out.write("# ".getBytes());
+		out.close();
+		assertEquals(Expect.RETV_EOF, expect.expectEOF(5));
+		recorder.close();
+		expect.close();
+		assertEquals(file.length(), recorder.size());
+		// magic, two chunks read and one sent, 13 bytes of header each
+		assertEquals(8 + 3 * 13 + 7 + 2 + 5, file.length());
+
+		for (boolean originalTiming : new boolean[] { false, true }) {
+			InputStream in = ExpectRecorder.replay(file, originalTiming);
+			Expect replay = new Expect(in, new ByteArrayOutputStream());
+			long start = System.nanoTime();
+			assertEquals(0, replay.expect(5, Expect.PatternSet.of("login: ")));
+			replay.send("root\n");
+			assertEquals(0, replay.expect(5, Expect.PatternSet.of("# ")));
+			long took = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+			assertTrue(originalTiming ? took >= 250 : took < 250);
+			assertEquals(Expect.RETV_EOF, replay.expectEOF(5));
+			replay.close();
+		}
+	}
+}
@@ -0,0 +1,308 @@
+package bench;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.Pipe;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks for Expect. Like TestExpect, the output of the "remote"
+ * side is written to an in-process {@link Pipe} by another thread, so
+ * nothing but the JVM is needed. See README.md for how to run them.<br>
+ * JMH does not accept benchmarks in the default package, and a class in a
+ * named package cannot refer to one in the default package (where Expect
+ * is), so Expect is called through method handles. Each call moves at least
+ * a kilobyte through a pipe, the handles cost next to nothing beside that.
+ */
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ExpectBenchmark {
+
+	static final String PROMPT = "$ ";
+
+	static final MethodHandle NEW_EXPECT, EXPECT, SEND, CLOSE,
+			SET_NOTRANSFER, SET_MATCH_MAX;
+	static {
+		try {
+			Class<?> c = Class.forName("Expect");
+			MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+			NEW_EXPECT = lookup.findConstructor(c, MethodType.methodType(
+					void.class, ReadableByteChannel.class, OutputStream.class));
+			EXPECT = lookup.findVirtual(c, "expect", MethodType.methodType(
+					int.class, int.class, List.class));
+			SEND = lookup.findVirtual(c, "send",
+					MethodType.methodType(void.class, byte[].class));
+			CLOSE = lookup.findVirtual(c, "close",
+					MethodType.methodType(void.class));
+			SET_NOTRANSFER = lookup.findVirtual(c, "setNotransfer",
+					MethodType.methodType(void.class, boolean.class));
+			SET_MATCH_MAX = lookup.findVirtual(c, "setMatch_max",
+					MethodType.methodType(void.class, int.class));
+		} catch (Exception e) {
+			throw new ExceptionInInitializerError(e);
+		}
+	}
+
+	/**
+	 * size bytes of lines looking like the output of a command, followed by
+	 * the prompt
+	 */
+	static byte[] output(int size) {
+		byte[] line = "drwxr-xr-x  2 user group  4096 Jan  1 00:00 directory\n"
+				.getBytes();
+		byte[] data = new byte[size];
+		int body = size - PROMPT.length();
+		for (int i = 0; i < body; i++)
+			data[i] = line[i % line.length];
+		System.arraycopy(PROMPT.getBytes(), 0, data, body, PROMPT.length());
+		return data;
+	}
+
+	/**
+	 * n patterns of which only the last one (the prompt) is in the output
+	 */
+	static List<Pattern> patterns(int n, boolean regex) {
+		List<Pattern> list = new ArrayList<Pattern>();
+		for (int i = 0; i < n - 1; i++)
+			list.add(regex ? Pattern.compile("error " + i + ": \\w+")
+					: Pattern.compile(Pattern.quote("error " + i + ": ")));
+		list.add(regex ? Pattern.compile("\\$\\s")
+				: Pattern.compile(Pattern.quote(PROMPT)));
+		return list;
+	}
+
+	/**
+	 * One Expect object and pipe for the whole trial. Every invocation hands
+	 * the output to a thread writing it into the pipe, so no session is set
+	 * up inside the measurement.<br>
+	 * With notransfer, expect() leaves the output in the buffer, where the
+	 * next invocation would find the old prompt without reading anything;
+	 * so after each invocation the buffer is consumed up to the prompt,
+	 * outside the measurement.
+	 */
+	@State(Scope.Thread)
+	public static class Session {
+		@Param({ "1024", "1048576", "104857600" })
+		int size;
+		@Param({ "1", "10", "100" })
+		int patternCount;
+		@Param({ "false", "true" })
+		boolean regex;
+		@Param({ "false", "true" })
+		boolean notransfer;
+
+		byte[] data;
+		List<Pattern> patterns, prompt;
+		ExecutorService writer;
+		Pipe pipe;
+		OutputStream out;
+		Object expect;
+		Future<?> written;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Throwable {
+			data = output(size);
+			patterns = patterns(patternCount, regex);
+			prompt = patterns.subList(patternCount - 1, patternCount);
+			writer = Executors.newSingleThreadExecutor();
+			pipe = Pipe.open();
+			out = Channels.newOutputStream(pipe.sink());
+			expect = NEW_EXPECT.invoke(pipe.source(), new NullOutputStream());
+			// keeps 100 MB from being held in the buffer as chars
+			SET_MATCH_MAX.invoke(expect, 1 << 20);
+			SET_NOTRANSFER.invoke(expect, notransfer);
+		}
+
+		@Setup(Level.Invocation)
+		public void refill() {
+			written = writer.submit(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						out.write(data);
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			});
+		}
+
+		@TearDown(Level.Invocation)
+		public void drain() throws Throwable {
+			written.get();
+			if (notransfer) {
+				SET_NOTRANSFER.invoke(expect, false);
+				int i = (int) EXPECT.invoke(expect, 0, prompt);
+				SET_NOTRANSFER.invoke(expect, true);
+				if (i != 0)
+					throw new IllegalStateException("prompt not in buffer");
+			}
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws Throwable {
+			writer.shutdown();
+			CLOSE.invoke(expect);
+			out.close();
+		}
+	}
+
+	/**
+	 * time to read and match size bytes of output, the writer runs
+	 * concurrently
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.AverageTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public int expect(Session s) throws Throwable {
+		int i = (int) EXPECT.invoke(s.expect, 60, s.patterns);
+		if (i != s.patternCount - 1)
+			throw new IllegalStateException("expect() returned " + i);
+		return i;
+	}
+
+	/**
+	 * One Expect object for the whole trial; every operation writes one
+	 * chunk of output and waits for its prompt.
+	 */
+	@State(Scope.Thread)
+	public static class Roundtrip {
+		@Param({ "1024", "1048576", "104857600" })
+		int size;
+
+		byte[] data;
+		List<Pattern> prompt;
+		ExecutorService writer;
+		Pipe pipe;
+		OutputStream out;
+		Object expect;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Throwable {
+			data = output(size);
+			prompt = patterns(1, false);
+			writer = Executors.newSingleThreadExecutor();
+			pipe = Pipe.open();
+			out = Channels.newOutputStream(pipe.sink());
+			expect = NEW_EXPECT.invoke(pipe.source(), new NullOutputStream());
+			SET_MATCH_MAX.invoke(expect, 1 << 20);
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws Throwable {
+			writer.shutdown();
+			CLOSE.invoke(expect);
+			out.close();
+		}
+	}
+
+	/**
+	 * latency from handing the output to the writing thread until expect()
+	 * returns
+	 */
+	@Benchmark
+	@BenchmarkMode(Mode.SampleTime)
+	@OutputTimeUnit(TimeUnit.MICROSECONDS)
+	public int latency(final Roundtrip r) throws Throwable {
+		Future<?> written = r.writer.submit(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					r.out.write(r.data);
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		});
+		int i = (int) EXPECT.invoke(r.expect, 60, r.prompt);
+		written.get();
+		return i;
+	}
+
+	/**
+	 * An Expect object sending into a pipe that another thread drains.
+	 */
+	@State(Scope.Thread)
+	public static class Sender {
+		@Param({ "1024", "1048576", "104857600" })
+		int size;
+
+		byte[] data;
+		Pipe pipe;
+		Thread drain;
+		Object expect;
+
+		@Setup(Level.Trial)
+		public void setUp() throws Throwable {
+			data = output(size);
+			pipe = Pipe.open();
+			final Pipe.SourceChannel source = pipe.source();
+			drain = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+					try {
+						while (source.read(buffer) != -1)
+							buffer.clear();
+					} catch (IOException e) {
+					}
+				}
+			});
+			drain.setDaemon(true);
+			drain.start();
+			// the input side is never read, an idle pipe will do
+			expect = NEW_EXPECT.invoke(Pipe.open().source(),
+					Channels.newOutputStream(pipe.sink()));
+		}
+
+		@TearDown(Level.Trial)
+		public void tearDown() throws Throwable {
+			CLOSE.invoke(expect);
+			drain.join();
+		}
+	}
+
+	/** send() of size bytes */
+	@Benchmark
+	@BenchmarkMode(Mode.Throughput)
+	@OutputTimeUnit(TimeUnit.SECONDS)
+	public void send(Sender s) throws Throwable {
+		SEND.invoke(s.expect, s.data);
+	}
+
+	static class NullOutputStream extends OutputStream {
+		@Override
+		public void write(int b) {
+		}
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	}
+}